@@ -0,0 +1,103 @@
+package com.oneapm.compiler.benchmark;
+
+import com.oneapm.compiler.Compiler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end compiles through {@link Compiler}: a single string source and a
+ * set of files, each with preprocessing off (no include path) and on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompileBenchmark {
+
+    /**
+     * Copies of the corpus members per unit.
+     */
+    @Param({"1", "10", "100"})
+    public int size;
+
+    /**
+     * Number of files in the multi-file compiles.
+     */
+    @Param({"20"})
+    public int files;
+
+    private Compiler plainCompiler;
+    private Compiler preprocessingCompiler;
+    private String plainSource;
+    private String directiveSource;
+    private File[] plainFiles;
+    private File[] directiveFiles;
+    private File includeDir;
+    private PrintWriter err;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        includeDir = Corpus.includeDir();
+        plainCompiler = new Compiler();
+        preprocessingCompiler = new Compiler(includeDir.getPath());
+        plainSource = Corpus.plainUnit("Bench", size);
+        directiveSource = Corpus.directiveUnit("Bench", size);
+        plainFiles = Corpus.writeUnits(files, size, false);
+        directiveFiles = Corpus.writeUnits(files, size, true);
+        err = new PrintWriter(new StringWriter());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Corpus.delete(includeDir);
+        Corpus.delete(plainFiles[0].getParentFile());
+        Corpus.delete(directiveFiles[0].getParentFile());
+    }
+
+    @Benchmark
+    public Map<String, byte[]> stringSource() {
+        return check(plainCompiler.compile("Bench.java", plainSource, err, null, null));
+    }
+
+    @Benchmark
+    public Map<String, byte[]> stringSourcePreprocessed() {
+        return check(preprocessingCompiler.compile("Bench.java", directiveSource, err, null, null));
+    }
+
+    @Benchmark
+    public Map<String, byte[]> multiFile() {
+        return check(plainCompiler.compile(plainFiles, err, null, null));
+    }
+
+    @Benchmark
+    public Map<String, byte[]> multiFilePreprocessed() {
+        return check(preprocessingCompiler.compile(directiveFiles, err, null, null));
+    }
+
+    private static Map<String, byte[]> check(Map<String, byte[]> classes) {
+        if (classes == null) {
+            throw new IllegalStateException("benchmark source failed to compile");
+        }
+        return classes;
+    }
+}
@@ -0,0 +1,107 @@
+package com.oneapm.compiler.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Builds benchmark inputs from the checked-in synthetic corpus under
+ * {@code src/main/resources/corpus}.
+ * <p>
+ * A unit of size n is a class holding n copies of the member fragments, so
+ * source size grows linearly with the benchmark's size parameter.
+ */
+final class Corpus {
+
+    private static final String MEMBERS = resource("members.txt");
+    private static final String DIRECTIVES = resource("directives.txt");
+    private static final String HEADER = resource("include/bench.h");
+
+    private Corpus() {
+    }
+
+    /**
+     * Returns the source of class {@code className} with {@code size} copies
+     * of the plain Java members.
+     */
+    static String plainUnit(String className, int size) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("public class ").append(className).append(" {\n");
+        for (int i = 0; i < size; i++) {
+            buf.append(MEMBERS.replace("$N", Integer.toString(i)));
+        }
+        buf.append("}\n");
+        return buf.toString();
+    }
+
+    /**
+     * Like {@link #plainUnit} but including the shared header and mixing in
+     * preprocessor directives, for compiles with an include path.
+     */
+    static String directiveUnit(String className, int size) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("#include \"bench.h\"\n");
+        buf.append("public class ").append(className).append(" {\n");
+        for (int i = 0; i < size; i++) {
+            String n = Integer.toString(i);
+            buf.append(MEMBERS.replace("$N", n));
+            buf.append(DIRECTIVES.replace("$N", n));
+        }
+        buf.append("}\n");
+        return buf.toString();
+    }
+
+    /**
+     * Creates a temporary include directory holding the corpus header.
+     */
+    static File includeDir() throws IOException {
+        File dir = Files.createTempDirectory("bench-include").toFile();
+        Files.write(new File(dir, "bench.h").toPath(), HEADER.getBytes(StandardCharsets.UTF_8));
+        return dir;
+    }
+
+    /**
+     * Writes {@code count} units of the given size into a temporary directory.
+     */
+    static File[] writeUnits(int count, int size, boolean directives) throws IOException {
+        File dir = Files.createTempDirectory("bench-src").toFile();
+        File[] files = new File[count];
+        for (int i = 0; i < count; i++) {
+            String className = "Unit" + i;
+            String source = directives ? directiveUnit(className, size) : plainUnit(className, size);
+            files[i] = new File(dir, className + ".java");
+            Files.write(files[i].toPath(), source.getBytes(StandardCharsets.UTF_8));
+        }
+        return files;
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static String resource(String name) {
+        try (InputStream in = Corpus.class.getResourceAsStream("/corpus/" + name)) {
+            if (in == null) {
+                throw new IllegalStateException("missing corpus file " + name);
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                bos.write(buf, 0, n);
+            }
+            return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException exp) {
+            throw new IllegalStateException(exp);
+        }
+    }
+}
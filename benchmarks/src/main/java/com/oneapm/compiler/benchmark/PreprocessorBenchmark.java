@@ -0,0 +1,74 @@
+package com.oneapm.compiler.benchmark;
+
+import com.oneapm.compiler.PCPP;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preprocessor-only throughput of {@link PCPP} on large inputs, for sources
+ * with and without directives.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PreprocessorBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    private String plainSource;
+    private String directiveSource;
+    private File includeDir;
+    private List<String> includeDirs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        includeDir = Corpus.includeDir();
+        includeDirs = Collections.singletonList(includeDir.getPath());
+        plainSource = Corpus.plainUnit("Bench", size);
+        directiveSource = Corpus.directiveUnit("Bench", size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Corpus.delete(includeDir);
+    }
+
+    @Benchmark
+    public int plain() throws IOException {
+        return preprocess(plainSource);
+    }
+
+    @Benchmark
+    public int directives() throws IOException {
+        return preprocess(directiveSource);
+    }
+
+    private int preprocess(String source) throws IOException {
+        StringWriter out = new StringWriter(source.length());
+        new PCPP(includeDirs, out).run(new StringReader(source), "Bench.java");
+        return out.getBuffer().length();
+    }
+}
@@ -0,0 +1,66 @@
+package com.oneapm.compiler.benchmark;
+
+import com.oneapm.compiler.ConcatenatingReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The reader layer under the preprocessor: {@link ConcatenatingReader} read
+ * one char at a time (as StreamTokenizer does) and in bulk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReaderBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    private String source;
+    private final char[] buf = new char[8192];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        source = Corpus.directiveUnit("Bench", size);
+    }
+
+    @Benchmark
+    public long singleChars() throws IOException {
+        ConcatenatingReader reader = new ConcatenatingReader(new BufferedReader(new StringReader(source)));
+        long sum = 0;
+        int c;
+        while ((c = reader.read()) != -1) {
+            sum += c;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long bulk() throws IOException {
+        ConcatenatingReader reader = new ConcatenatingReader(new BufferedReader(new StringReader(source)));
+        long total = 0;
+        int n;
+        while ((n = reader.read(buf, 0, buf.length)) != -1) {
+            total += n;
+        }
+        return total;
+    }
+}
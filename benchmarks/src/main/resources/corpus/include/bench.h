@@ -0,0 +1,10 @@
+#ifndef BENCH_H
+#define BENCH_H
+
+// Shared definitions pulled in by every preprocessed benchmark unit.
+#define BENCH_TRACE
+#define BENCH_SCALE 3
+#define BENCH_LIMIT 1024
+#define BENCH_VERSION 0x10
+
+#endif
@@ -0,0 +1,224 @@
+package com.oneapm.compiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * What incremental compilation needs to know about a compiled class: the
+ * classes it refers to, its direct supertypes and a fingerprint of its API.
+ * <p>
+ * The API fingerprint covers the class header and all non-private fields and
+ * methods. Compile-time constants get a fingerprint of their own, because
+ * javac inlines them and so their users cannot be found by looking at the
+ * referring class files.
+ */
+final class ClassFileInfo {
+
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_FINAL = 0x0010;
+
+    final String name;
+    final Set<String> references;
+    // superclass and interfaces
+    final Set<String> supertypes;
+    final String abi;
+    final String constants;
+
+    private ClassFileInfo(String name, Set<String> references, Set<String> supertypes,
+                          String abi, String constants) {
+        this.name = name;
+        this.references = references;
+        this.supertypes = supertypes;
+        this.abi = abi;
+        this.constants = constants;
+    }
+
+    static ClassFileInfo parse(byte[] code) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(code));
+        if (in.readInt() != 0xCAFEBABE) {
+            throw new IOException("not a class file");
+        }
+        in.readUnsignedShort(); // minor
+        in.readUnsignedShort(); // major
+
+        int cpCount = in.readUnsignedShort();
+        Object[] pool = new Object[cpCount];
+        int[] tags = new int[cpCount];
+        for (int i = 1; i < cpCount; i++) {
+            int tag = in.readUnsignedByte();
+            tags[i] = tag;
+            switch (tag) {
+                case 1: // Utf8
+                    pool[i] = in.readUTF();
+                    break;
+                case 3: // Integer
+                    pool[i] = in.readInt();
+                    break;
+                case 4: // Float
+                    pool[i] = in.readFloat();
+                    break;
+                case 5: // Long
+                    pool[i] = in.readLong();
+                    i++;
+                    break;
+                case 6: // Double
+                    pool[i] = in.readDouble();
+                    i++;
+                    break;
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    pool[i] = in.readUnsignedShort();
+                    break;
+                case 15: // MethodHandle
+                    in.readUnsignedByte();
+                    in.readUnsignedShort();
+                    break;
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    in.readUnsignedShort();
+                    in.readUnsignedShort();
+                    break;
+                default:
+                    throw new IOException("bad constant pool tag " + tag);
+            }
+        }
+
+        Set<String> references = new HashSet<>();
+        for (int i = 1; i < cpCount; i++) {
+            if (tags[i] == 7) {
+                String className = (String) pool[(Integer) pool[i]];
+                if (className.startsWith("[")) {
+                    addDescriptorTypes(className, references);
+                } else {
+                    references.add(className.replace('/', '.'));
+                }
+            } else if (tags[i] == 1) {
+                // descriptors and generic signatures only live in Utf8 entries
+                addDescriptorTypes((String) pool[i], references);
+            }
+        }
+
+        int access = in.readUnsignedShort();
+        String name = classNameAt(pool, in.readUnsignedShort());
+        int superIndex = in.readUnsignedShort();
+        String superName = superIndex == 0 ? "" : classNameAt(pool, superIndex);
+        List<String> interfaces = new ArrayList<>();
+        int interfaceCount = in.readUnsignedShort();
+        for (int i = 0; i < interfaceCount; i++) {
+            interfaces.add(classNameAt(pool, in.readUnsignedShort()));
+        }
+        Collections.sort(interfaces);
+
+        List<String> members = new ArrayList<>();
+        List<String> constants = new ArrayList<>();
+        readMembers(in, pool, tags, 'F', members, constants);
+        readMembers(in, pool, tags, 'M', members, constants);
+        Collections.sort(members);
+        Collections.sort(constants);
+
+        MessageDigest md = CompilationCache.newDigest();
+        CompilationCache.update(md, access + " " + name + " " + superName + " " + interfaces);
+        for (String member : members) {
+            CompilationCache.update(md, member);
+        }
+        String abi = CompilationCache.toHex(md.digest());
+        for (String constant : constants) {
+            CompilationCache.update(md, constant);
+        }
+        references.remove(name);
+        Set<String> supertypes = new HashSet<>(interfaces);
+        if (!superName.isEmpty()) {
+            supertypes.add(superName);
+        }
+        return new ClassFileInfo(name, references, supertypes, abi, CompilationCache.toHex(md.digest()));
+    }
+
+    private static void readMembers(DataInputStream in, Object[] pool, int[] tags, char kind,
+                                    List<String> members, List<String> constants) throws IOException {
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            int access = in.readUnsignedShort();
+            String memberName = (String) pool[in.readUnsignedShort()];
+            String descriptor = (String) pool[in.readUnsignedShort()];
+            StringBuilder extra = new StringBuilder();
+            String constant = null;
+            int attrCount = in.readUnsignedShort();
+            for (int a = 0; a < attrCount; a++) {
+                String attrName = (String) pool[in.readUnsignedShort()];
+                int length = in.readInt();
+                if (attrName.equals("ConstantValue")) {
+                    int index = in.readUnsignedShort();
+                    Object value = pool[index];
+                    if (tags[index] == 8) {
+                        // CONSTANT_String refers to its Utf8 entry
+                        value = pool[(Integer) value];
+                    }
+                    constant = tags[index] + ":" + value;
+                } else if (attrName.equals("Signature")) {
+                    extra.append(" sig ").append(pool[in.readUnsignedShort()]);
+                } else if (attrName.equals("Exceptions")) {
+                    int n = in.readUnsignedShort();
+                    List<String> exceptions = new ArrayList<>();
+                    for (int e = 0; e < n; e++) {
+                        exceptions.add(classNameAt(pool, in.readUnsignedShort()));
+                    }
+                    Collections.sort(exceptions);
+                    extra.append(" throws ").append(exceptions);
+                } else {
+                    in.skipBytes(length);
+                }
+            }
+            if (constant != null && (access & (ACC_STATIC | ACC_FINAL)) == (ACC_STATIC | ACC_FINAL)) {
+                constants.add(memberName + "=" + constant);
+            }
+            if ((access & ACC_PRIVATE) == 0) {
+                members.add(kind + " " + access + " " + memberName + " " + descriptor + extra);
+            }
+        }
+    }
+
+    private static String classNameAt(Object[] pool, int index) {
+        return ((String) pool[(Integer) pool[index]]).replace('/', '.');
+    }
+
+    /**
+     * Collects the class names of all "Lpkg/Name;" (or "Lpkg/Name<") shapes
+     * in the string. Strings that only look like descriptors add harmless
+     * extra references.
+     */
+    private static void addDescriptorTypes(String s, Set<String> references) {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            if (s.charAt(i) != 'L') {
+                continue;
+            }
+            int end = i + 1;
+            while (end < len && s.charAt(end) != ';' && s.charAt(end) != '<') {
+                char c = s.charAt(end);
+                if (!Character.isJavaIdentifierPart(c) && c != '/' && c != '$') {
+                    break;
+                }
+                end++;
+            }
+            if (end < len && end > i + 1 && (s.charAt(end) == ';' || s.charAt(end) == '<')) {
+                references.add(s.substring(i + 1, end).replace('/', '.'));
+                i = end;
+            }
+        }
+    }
+}
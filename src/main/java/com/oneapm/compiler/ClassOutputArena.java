@@ -0,0 +1,116 @@
+package com.oneapm.compiler;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Slab allocator for the class files of one compilation. Classes are written
+ * back to back into shared 64K slabs and handed out as read-only
+ * {@link ByteBuffer} views, instead of each class growing its own
+ * ByteArrayOutputStream and being copied out of it again.
+ * <p>
+ * Slabs are never reused: a view keeps its whole slab reachable for as long
+ * as it is referenced, so callers that keep a few classes of a large batch
+ * around for long should copy them.
+ */
+final class ClassOutputArena {
+
+    private static final int SLAB_SIZE = 64 * 1024;
+    // start a new slab rather than fill the last bytes of the current one
+    private static final int MIN_FREE = 1024;
+
+    private byte[] slab;
+    private int used;
+    // the stream currently writing at the end of the slab, if any
+    private Output owner;
+
+    /**
+     * Returns a stream that hands a view of what was written to the sink
+     * when it is closed.
+     */
+    OutputStream open(String name, ClassSink sink) {
+        Output out = new Output(name, sink);
+        claim(out);
+        return out;
+    }
+
+    private synchronized void claim(Output out) {
+        if (owner != null || slab == null || slab.length - used < MIN_FREE) {
+            slab = new byte[SLAB_SIZE];
+            used = 0;
+        }
+        owner = out;
+        out.buf = slab;
+        out.start = used;
+        out.pos = used;
+    }
+
+    private synchronized void release(Output out) {
+        if (owner != out) {
+            return;
+        }
+        owner = null;
+        if (out.buf == slab) {
+            used = out.pos;
+        } else if (out.buf.length - out.pos > slab.length - used) {
+            // the stream outgrew the slab; continue in its larger buffer
+            slab = out.buf;
+            used = out.pos;
+        }
+    }
+
+    private final class Output extends OutputStream {
+        private final String name;
+        private final ClassSink sink;
+        byte[] buf;
+        int start;
+        int pos;
+        private boolean closed;
+
+        Output(String name, ClassSink sink) {
+            this.name = name;
+            this.sink = sink;
+        }
+
+        @Override
+        public void write(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if ((off | len | (off + len) | (b.length - (off + len))) < 0) {
+                throw new IndexOutOfBoundsException();
+            }
+            ensure(len);
+            System.arraycopy(b, off, buf, pos, len);
+            pos += len;
+        }
+
+        private void ensure(int n) {
+            if (closed) {
+                throw new IllegalStateException("stream closed");
+            }
+            if (buf.length - pos < n) {
+                int size = pos - start;
+                byte[] bigger = new byte[Math.max(SLAB_SIZE, 2 * (size + n))];
+                System.arraycopy(buf, start, bigger, 0, size);
+                buf = bigger;
+                start = 0;
+                pos = size;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            ByteBuffer view = ByteBuffer.wrap(buf, start, pos - start).slice().asReadOnlyBuffer();
+            release(this);
+            sink.classGenerated(name, view);
+        }
+    }
+}
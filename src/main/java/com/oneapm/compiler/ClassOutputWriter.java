@@ -0,0 +1,130 @@
+package com.oneapm.compiler;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Writes compiled classes below an output directory, several files at a
+ * time. All directories are created up front. A file whose content is
+ * already what would be written is left alone, so its timestamp does not
+ * trigger downstream rebuilds. Optionally each file is written to a
+ * temporary file first and renamed into place, so readers never see a
+ * partly written class.
+ * <p>
+ * Must not be called from a thread of the executor it writes on.
+ */
+final class ClassOutputWriter {
+
+    private final Path outputDir;
+    private final String extension;
+    private final boolean atomic;
+    private final Executor executor;
+
+    ClassOutputWriter(Path outputDir, String extension, boolean atomic, Executor executor) {
+        this.outputDir = outputDir;
+        this.extension = extension;
+        this.atomic = atomic;
+        this.executor = executor;
+    }
+
+    /**
+     * Writes the classes and returns how many files were actually written.
+     */
+    int write(Map<String, byte[]> classes) throws IOException {
+        TreeSet<Path> dirs = new TreeSet<>();
+        for (String name : classes.keySet()) {
+            dirs.add(pathOf(name).getParent());
+        }
+        for (Path dir : dirs) {
+            Files.createDirectories(dir);
+        }
+
+        List<FutureTask<Boolean>> tasks = new ArrayList<>(classes.size());
+        for (final Map.Entry<String, byte[]> c : classes.entrySet()) {
+            FutureTask<Boolean> task = new FutureTask<>(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    return writeFile(pathOf(c.getKey()), c.getValue());
+                }
+            });
+            tasks.add(task);
+            executor.execute(task);
+        }
+
+        int written = 0;
+        IOException failure = null;
+        for (FutureTask<Boolean> task : tasks) {
+            try {
+                if (task.get()) {
+                    written++;
+                }
+            } catch (ExecutionException exp) {
+                Throwable cause = exp.getCause();
+                if (cause instanceof IOException) {
+                    if (failure == null) {
+                        failure = (IOException) cause;
+                    }
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else {
+                    throw new RuntimeException(cause);
+                }
+            } catch (InterruptedException exp) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while writing classes", exp);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return written;
+    }
+
+    private Path pathOf(String className) {
+        return outputDir.resolve(className.replace('.', '/') + "." + extension);
+    }
+
+    private boolean writeFile(Path file, byte[] code) throws IOException {
+        if (sameContent(file, code)) {
+            return false;
+        }
+        if (atomic) {
+            Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try {
+                Files.write(tmp, code);
+                try {
+                    Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException exp) {
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } else {
+            Files.write(file, code);
+        }
+        return true;
+    }
+
+    private static boolean sameContent(Path file, byte[] code) throws IOException {
+        try {
+            // the size check avoids reading files that certainly changed
+            return Files.size(file) == code.length && Arrays.equals(Files.readAllBytes(file), code);
+        } catch (NoSuchFileException exp) {
+            return false;
+        }
+    }
+}
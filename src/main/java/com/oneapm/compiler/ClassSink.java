@@ -0,0 +1,19 @@
+package com.oneapm.compiler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives each class file as soon as javac has written it, so the class can
+ * be defined, written or hashed while javac is still generating the rest.
+ */
+public interface ClassSink {
+
+    /**
+     * Called on the compiling thread, once per class.
+     *
+     * @param className binary name of the class
+     * @param code      read-only view of the class file; it stays valid after
+     *                  the call returns
+     */
+    void classGenerated(String className, ByteBuffer code);
+}
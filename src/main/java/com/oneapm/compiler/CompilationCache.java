@@ -0,0 +1,193 @@
+package com.oneapm.compiler;
+
+import javax.tools.JavaFileObject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory cache of compilation results.
+ * <p>
+ * Entries are keyed by a SHA-256 digest of the (already preprocessed)
+ * compilation units, the javac options which include the classpath and
+ * sourcepath strings, and a fingerprint of the classpath entries. Sources
+ * javac pulls in from the sourcepath are not known up front, so an entry
+ * also lists the ones it read with a hash of their content, and the
+ * compiler only uses it while they all still hash the same. Eviction is
+ * least-recently-used, bounded both by the number of entries and by the
+ * total number of class bytes retained.
+ * Only successful compilations are cached.
+ */
+public final class CompilationCache {
+
+    /**
+     * Name of the entry listing the sourcepath files a result was compiled
+     * from. It is never a class name.
+     */
+    static final String SOURCE_READS = "";
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Map<String, byte[]>> entries =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public CompilationCache(int maxEntries) {
+        this(maxEntries, Long.MAX_VALUE);
+    }
+
+    public CompilationCache(int maxEntries, long maxBytes) {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("cache bounds must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a copy of the cached class map for the key, or null if absent.
+     * The class byte arrays themselves are shared and must not be modified.
+     */
+    synchronized Map<String, byte[]> get(String key) {
+        Map<String, byte[]> classes = entries.get(key);
+        if (classes == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new HashMap<>(classes);
+    }
+
+    synchronized void put(String key, Map<String, byte[]> classes) {
+        long size = sizeOf(classes);
+        if (size > maxBytes) {
+            return;
+        }
+        Map<String, byte[]> old = entries.put(key, new HashMap<>(classes));
+        if (old != null) {
+            totalBytes -= sizeOf(old);
+        }
+        totalBytes += size;
+        Iterator<Map<String, byte[]>> iter = entries.values().iterator();
+        while ((entries.size() > maxEntries || totalBytes > maxBytes) && iter.hasNext()) {
+            totalBytes -= sizeOf(iter.next());
+            iter.remove();
+        }
+    }
+
+    /**
+     * Counts an entry get returned that turned out to be out of date as a
+     * miss.
+     */
+    void stale() {
+        hits.decrementAndGet();
+        misses.incrementAndGet();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    private static long sizeOf(Map<String, byte[]> classes) {
+        long size = 0;
+        for (byte[] code : classes.values()) {
+            size += code.length;
+        }
+        return size;
+    }
+
+    /**
+     * Computes the cache key of a compilation. The javac options are expected
+     * to carry the classpath and sourcepath. Each classpath entry is also
+     * fingerprinted by its modification time and size, so rebuilding a jar
+     * invalidates results compiled against it. Directories only contribute
+     * their own time stamp.
+     */
+    static String key(Iterable<? extends JavaFileObject> compUnits, List<String> options,
+                      String classPath) throws IOException {
+        MessageDigest md = newDigest();
+        for (String option : options) {
+            update(md, option);
+        }
+        if (classPath != null) {
+            for (String entry : classPath.split(File.pathSeparator)) {
+                File file = new File(entry);
+                update(md, file.lastModified() + ":" + file.length());
+            }
+        }
+        for (JavaFileObject jfo : compUnits) {
+            update(md, jfo.toUri().toString());
+            update(md, jfo.getCharContent(true));
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * Encodes sourcepath files and their hashes as the {@link #SOURCE_READS}
+     * entry.
+     */
+    static byte[] encodeSourceReads(Map<String, String> sourceReads) {
+        StringBuilder buf = new StringBuilder();
+        for (Map.Entry<String, String> read : sourceReads.entrySet()) {
+            buf.append(read.getKey()).append('\0').append(read.getValue()).append('\0');
+        }
+        return buf.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static Map<String, String> decodeSourceReads(byte[] encoded) {
+        Map<String, String> sourceReads = new HashMap<>();
+        String[] parts = new String(encoded, StandardCharsets.UTF_8).split("\0");
+        for (int i = 0; i + 1 < parts.length; i += 2) {
+            sourceReads.put(parts[i], parts[i + 1]);
+        }
+        return sourceReads;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exp) {
+            throw new RuntimeException(exp);
+        }
+    }
+
+    static void update(MessageDigest md, CharSequence s) {
+        byte[] bytes = s.toString().getBytes(StandardCharsets.UTF_8);
+        int len = bytes.length;
+        // length prefix keeps ("ab", "c") and ("a", "bc") apart
+        md.update(new byte[]{(byte) (len >>> 24), (byte) (len >>> 16), (byte) (len >>> 8), (byte) len});
+        md.update(bytes);
+    }
+
+    static String toHex(byte[] digest) {
+        StringBuilder buf = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            buf.append(Character.forDigit((b >> 4) & 0xF, 16));
+            buf.append(Character.forDigit(b & 0xF, 16));
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,169 @@
+package com.oneapm.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drop-in replacement for {@link Compiler#main} that sends the command line
+ * to a {@link CompileDaemon}, starting one in the background if none is
+ * running. Takes the same flags, plus -stop to shut the daemon down. If no
+ * daemon can be reached, or it goes away before answering, the command runs
+ * in this process.
+ */
+public final class CompileClient {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int START_TIMEOUT_MILLIS = 20000;
+
+    private CompileClient() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        File portFile = CompileDaemon.defaultPortFile();
+        boolean stop = args.length == 1 && args[0].equals(CompileDaemon.STOP);
+        Connection connection = connect(portFile);
+        if (connection == null && !stop) {
+            startDaemon(portFile);
+            connection = awaitDaemon(portFile);
+        }
+        if (connection == null) {
+            if (!stop) {
+                Compiler.main(args);
+            }
+            return;
+        }
+
+        int status;
+        try {
+            status = send(connection.socket, connection.token, new File("").getAbsoluteFile(), args, System.err);
+        } catch (IOException exp) {
+            // the daemon went away meanwhile, e.g. it shut down for idle
+            if (!stop) {
+                Compiler.main(args);
+            }
+            return;
+        } finally {
+            connection.close();
+        }
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * An open connection to a daemon and the token it expects, both taken
+     * from one read of the port file.
+     */
+    static final class Connection implements Closeable {
+        final Socket socket;
+        final String token;
+
+        Connection(Socket socket, String token) {
+            this.socket = socket;
+            this.token = token;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * Sends one command line to a daemon, copies its error output to err
+     * and returns its exit status.
+     */
+    static int send(Socket socket, String token, File baseDir, String[] args, PrintStream err)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeUTF(token);
+        out.writeUTF(baseDir.getPath());
+        out.writeInt(args.length);
+        for (String arg : args) {
+            out.writeUTF(arg);
+        }
+        out.flush();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        int status = in.readInt();
+        err.print(CompileDaemon.readString(in));
+        err.flush();
+        return status;
+    }
+
+    /**
+     * Connects to the daemon named by the port file, or returns null if
+     * there is none.
+     */
+    static Connection connect(File portFile) {
+        String[] info = readPortFile(portFile);
+        if (info == null) {
+            return null;
+        }
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(info[0])),
+                    CONNECT_TIMEOUT_MILLIS);
+            return new Connection(socket, info[1]);
+        } catch (IOException | NumberFormatException exp) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Returns the port and the token, or null if there is no daemon.
+     */
+    static String[] readPortFile(File portFile) {
+        try {
+            String[] info = new String(Files.readAllBytes(portFile.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+            return info.length == 2 ? info : null;
+        } catch (IOException exp) {
+            return null;
+        }
+    }
+
+    private static void startDaemon(File portFile) throws IOException {
+        File javaHome = new File(System.getProperty("java.home"));
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(javaHome, "bin"), "java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(CompileDaemon.class.getName());
+        command.add("-portfile");
+        command.add(portFile.getAbsolutePath());
+        File log = new File(portFile.getAbsolutePath() + ".log");
+        Files.createDirectories(log.getParentFile().toPath());
+        new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(log))
+                .start();
+    }
+
+    private static Connection awaitDaemon(File portFile) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            Connection connection = connect(portFile);
+            if (connection != null) {
+                return connection;
+            }
+            Thread.sleep(50);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,248 @@
+package com.oneapm.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps warm compilers resident and runs {@link Compiler#main} command
+ * lines sent by {@link CompileClient}, so build scripts calling the
+ * compiler many times pay JVM startup and javac warm-up only once.
+ * <p>
+ * The daemon listens on a loopback port. It writes the port and a random
+ * token to a file only its owner can read, and serves only clients that
+ * present the token. It exits after being idle for a while, or when a
+ * client sends -stop.
+ * <p>
+ * A request is the token, the client's working directory and the
+ * arguments; the response is the exit status and the error output.
+ * <p>
+ * The compilation cache is off unless asked for with -cache, since each
+ * pooled compiler then keeps the classes of its recent builds in memory.
+ * A cached result is checked against the sourcepath sources javac read for
+ * it, so a dependency edited between two identical commands is recompiled.
+ */
+public final class CompileDaemon {
+
+    static final String PORT_FILE_PROPERTY = "dynamic-compile.portfile";
+    static final String STOP = "-stop";
+
+    private static final int CHECK_MILLIS = 1000;
+
+    private final File portFile;
+    private final long idleMillis;
+    private final String token;
+    private final CompilerPool pool;
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile long lastActive = System.currentTimeMillis();
+    private volatile boolean stopped;
+    private ServerSocket server;
+
+    public CompileDaemon(File portFile, long idleMillis) {
+        this(portFile, idleMillis, 0);
+    }
+
+    /**
+     * @param cacheEntries size of the compilation cache of each pooled
+     *                     compiler, 0 for none
+     */
+    public CompileDaemon(File portFile, long idleMillis, int cacheEntries) {
+        this.portFile = portFile;
+        this.idleMillis = idleMillis;
+        this.pool = new CompilerPool(8, cacheEntries);
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        this.token = CompilationCache.toHex(bytes);
+    }
+
+    public static void main(String[] args) throws Exception {
+        File portFile = defaultPortFile();
+        long idleSeconds = 30 * 60;
+        int cacheEntries = 0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-portfile") && i + 1 < args.length) {
+                portFile = new File(args[++i]);
+            } else if (args[i].equals("-idle") && i + 1 < args.length) {
+                idleSeconds = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-cache") && i + 1 < args.length) {
+                cacheEntries = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("usage: CompileDaemon [-portfile <file>] [-idle <seconds>] [-cache <entries>]");
+                System.exit(1);
+            }
+        }
+        new CompileDaemon(portFile, idleSeconds * 1000, cacheEntries).run();
+    }
+
+    /**
+     * Returns the port file clients and daemons use unless told otherwise.
+     */
+    static File defaultPortFile() {
+        String file = System.getProperty(PORT_FILE_PROPERTY);
+        if (file != null) {
+            return new File(file);
+        }
+        return new File(System.getProperty("user.home"), ".dynamic-compile" + File.separator + "daemon.port");
+    }
+
+    /**
+     * Serves requests until stopped or idle for too long.
+     */
+    public void run() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        ExecutorService handlers = Executors.newCachedThreadPool(
+                CompilerExecutors.daemonThreads("dynamic-compile-daemon-"));
+        try {
+            writePortFile(server.getLocalPort());
+            server.setSoTimeout(CHECK_MILLIS);
+            while (!stopped) {
+                final Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketTimeoutException exp) {
+                    if (active.get() == 0 && System.currentTimeMillis() - lastActive > idleMillis) {
+                        break;
+                    }
+                    continue;
+                } catch (IOException exp) {
+                    if (stopped) {
+                        break;
+                    }
+                    throw exp;
+                }
+                active.incrementAndGet();
+                handlers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            handle(socket);
+                        } finally {
+                            lastActive = System.currentTimeMillis();
+                            active.decrementAndGet();
+                        }
+                    }
+                });
+            }
+        } finally {
+            stopped = true;
+            server.close();
+            deletePortFile();
+            handlers.shutdown();
+            try {
+                // let running requests send their responses
+                handlers.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException exp) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            socket.setSoTimeout(0);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (!token.equals(in.readUTF())) {
+                return;
+            }
+            File baseDir = new File(in.readUTF());
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+
+            StringWriter errText = new StringWriter();
+            PrintWriter err = new PrintWriter(errText);
+            int status;
+            if (args.length == 1 && args[0].equals(STOP)) {
+                stop();
+                status = 0;
+            } else {
+                try {
+                    status = Compiler.run(args, baseDir, err, pool);
+                } catch (IOException | RuntimeException exp) {
+                    exp.printStackTrace(err);
+                    status = 1;
+                }
+            }
+            err.flush();
+            out.writeInt(status);
+            writeString(out, errText.toString());
+            out.flush();
+        } catch (IOException exp) {
+            // client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException exp) {
+            }
+        }
+    }
+
+    private void stop() {
+        stopped = true;
+        try {
+            server.close();
+        } catch (IOException exp) {
+        }
+    }
+
+    private void writePortFile(int port) throws IOException {
+        File dir = portFile.getAbsoluteFile().getParentFile();
+        Files.createDirectories(dir.toPath());
+        File tmp = File.createTempFile("daemon", ".tmp", dir);
+        try {
+            try {
+                Files.setPosixFilePermissions(tmp.toPath(), PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException exp) {
+                tmp.setReadable(false, false);
+                tmp.setReadable(true, true);
+            }
+            Files.write(tmp.toPath(), (port + " " + token + "\n").getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), portFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    private void deletePortFile() {
+        // another daemon may have taken over the file meanwhile
+        try {
+            String content = new String(Files.readAllBytes(portFile.toPath()), StandardCharsets.UTF_8);
+            if (content.trim().endsWith(" " + token)) {
+                Files.deleteIfExists(portFile.toPath());
+            }
+        } catch (IOException exp) {
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
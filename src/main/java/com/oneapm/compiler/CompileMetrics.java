@@ -0,0 +1,188 @@
+package com.oneapm.compiler;
+
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+
+import javax.tools.JavaFileObject;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Where the time of one compilation went: the PCPP pass and each javac phase
+ * (PARSE, ENTER, ANALYZE, GENERATE, ...) per compilation unit, the total
+ * wall time, and the bytes allocated by the compiling thread and by the
+ * worker threads preprocessing for it.
+ * <p>
+ * javac phases are timed by a {@link TaskListener} on the compilation task.
+ * Events that do not belong to a unit, such as annotation processing, are
+ * recorded under the empty unit name.
+ */
+public final class CompileMetrics {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final Thread thread;
+    private final long startNanos;
+    private final long startAllocated;
+    private long workerAllocated;
+    private long totalNanos = -1;
+    private long allocatedBytes = -1;
+    private final Map<String, Long> preprocessNanos = new LinkedHashMap<>();
+    private final Map<String, Map<String, Long>> phaseNanos = new LinkedHashMap<>();
+    private final Map<String, Long> started = new HashMap<>();
+
+    CompileMetrics() {
+        thread = Thread.currentThread();
+        startAllocated = threadAllocatedBytes();
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns the time spent in the PCPP pass keyed by unit name.
+     */
+    public synchronized Map<String, Long> getPreprocessNanos() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(preprocessNanos));
+    }
+
+    /**
+     * Returns the time spent in each javac phase, keyed by unit name and then
+     * by phase name.
+     */
+    public synchronized Map<String, Map<String, Long>> getPhaseNanos() {
+        Map<String, Map<String, Long>> copy = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, Long>> unit : phaseNanos.entrySet()) {
+            copy.put(unit.getKey(), Collections.unmodifiableMap(new LinkedHashMap<>(unit.getValue())));
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * Returns the time spent in the named javac phase summed over all units.
+     */
+    public synchronized long getPhaseNanos(String phase) {
+        long sum = 0;
+        for (Map<String, Long> phases : phaseNanos.values()) {
+            Long nanos = phases.get(phase);
+            if (nanos != null) {
+                sum += nanos;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the wall time of the whole compilation, preprocessing included.
+     */
+    public synchronized long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * Returns the bytes allocated by the compiling thread and by workers
+     * preprocessing its units, or -1 if the JVM cannot tell.
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("total ").append(totalNanos / 1000).append("us, allocated ")
+                .append(allocatedBytes).append(" bytes");
+        for (Map.Entry<String, Long> unit : preprocessNanos.entrySet()) {
+            buf.append("\n  ").append(unit.getKey()).append(": PCPP ").append(unit.getValue() / 1000).append("us");
+        }
+        for (Map.Entry<String, Map<String, Long>> unit : phaseNanos.entrySet()) {
+            buf.append("\n  ").append(unit.getKey()).append(":");
+            for (Map.Entry<String, Long> phase : unit.getValue().entrySet()) {
+                buf.append(" ").append(phase.getKey()).append(" ").append(phase.getValue() / 1000).append("us");
+            }
+        }
+        return buf.toString();
+    }
+
+    synchronized void addPreprocessNanos(String unit, long nanos) {
+        Long old = preprocessNanos.get(unit);
+        preprocessNanos.put(unit, old == null ? nanos : old + nanos);
+    }
+
+    /**
+     * Adds what the current thread allocated since it read
+     * {@link #threadAllocatedBytes}, unless it is the compiling thread, whose
+     * allocations are measured as a whole.
+     */
+    synchronized void addAllocatedBytes(long since) {
+        if (Thread.currentThread() != thread && since >= 0) {
+            workerAllocated += threadAllocatedBytes() - since;
+        }
+    }
+
+    /**
+     * Returns a listener timing the javac phases of a task.
+     */
+    TaskListener listener() {
+        return new TaskListener() {
+            @Override
+            public void started(TaskEvent e) {
+                long now = System.nanoTime();
+                synchronized (CompileMetrics.this) {
+                    started.put(eventKey(e), now);
+                }
+            }
+
+            @Override
+            public void finished(TaskEvent e) {
+                long now = System.nanoTime();
+                synchronized (CompileMetrics.this) {
+                    Long start = started.remove(eventKey(e));
+                    if (start != null) {
+                        String unit = unitName(e);
+                        Map<String, Long> phases = phaseNanos.get(unit);
+                        if (phases == null) {
+                            phases = new LinkedHashMap<>();
+                            phaseNanos.put(unit, phases);
+                        }
+                        String phase = e.getKind().name();
+                        Long old = phases.get(phase);
+                        phases.put(phase, old == null ? now - start : old + now - start);
+                    }
+                }
+            }
+        };
+    }
+
+    synchronized void finish() {
+        totalNanos = System.nanoTime() - startNanos;
+        long allocated = threadAllocatedBytes();
+        allocatedBytes = (allocated < 0 || startAllocated < 0) ? -1 : allocated - startAllocated + workerAllocated;
+    }
+
+    private static String eventKey(TaskEvent e) {
+        return e.getKind().name() + '\0' + unitName(e) + '\0' +
+                (e.getTypeElement() == null ? "" : e.getTypeElement().getQualifiedName());
+    }
+
+    private static String unitName(TaskEvent e) {
+        JavaFileObject source = e.getSourceFile();
+        return source == null ? "" : source.getName();
+    }
+
+    /**
+     * Returns the bytes the current thread allocated so far, or -1 if the JVM
+     * cannot tell.
+     */
+    static long threadAllocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) THREADS;
+            if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
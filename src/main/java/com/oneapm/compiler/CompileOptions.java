@@ -0,0 +1,65 @@
+package com.oneapm.compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The javac options a {@link Compiler} passes on every compilation, apart
+ * from -sourcepath and -classpath which are added per call.
+ * <p>
+ * {@link #DEFAULT} is what the compiler always used. {@link #FAST} drops
+ * everything that only costs time when the output is loaded right away:
+ * lint, deprecation checks, debug info, annotation processing and class
+ * files for implicitly compiled sources. {@link #STRICT} is meant for CI
+ * and turns every warning into an error, except the [options] warnings
+ * newer JDKs give for the old -source and -target themselves.
+ */
+public final class CompileOptions {
+
+    public static final CompileOptions DEFAULT = new CompileOptions("default",
+            "-Xlint:all", "-g:lines", "-deprecation",
+            "-source", "1.7", "-target", "1.7");
+
+    /**
+     * Note that with -implicit:none classes compiled only because they were
+     * found on the sourcepath are not part of the result.
+     */
+    public static final CompileOptions FAST = new CompileOptions("fast",
+            "-Xlint:none", "-nowarn", "-g:none", "-proc:none", "-implicit:none",
+            "-source", "1.7", "-target", "1.7");
+
+    public static final CompileOptions STRICT = new CompileOptions("strict",
+            "-Xlint:all", "-Xlint:-options", "-Werror", "-g", "-deprecation",
+            "-source", "1.7", "-target", "1.7");
+
+    private final String name;
+    private final List<String> options;
+
+    private CompileOptions(String name, String... options) {
+        this.name = name;
+        this.options = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(options)));
+    }
+
+    /**
+     * Returns a profile with exactly the given javac options. Do not pass
+     * -sourcepath or -classpath, the compile methods take those.
+     */
+    public static CompileOptions of(String... options) {
+        return new CompileOptions("custom", options);
+    }
+
+    public static CompileOptions of(List<String> options) {
+        return new CompileOptions("custom", options.toArray(new String[0]));
+    }
+
+    public List<String> getOptions() {
+        return options;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + options;
+    }
+}
@@ -0,0 +1,146 @@
+package com.oneapm.compiler;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outcome of compiling one unit (or one set of files): the compiled class
+ * bytes on success, the diagnostics javac reported either way, and where
+ * the time went.
+ */
+public final class CompileResult {
+
+    // a fresh compilation has buffers and makes arrays on demand, a cached
+    // result the other way round
+    private Map<String, byte[]> classes;
+    private Map<String, ByteBuffer> buffers;
+    private final boolean success;
+    private final List<Diagnostic<? extends JavaFileObject>> diagnostics;
+    private final int errorCount;
+    private final int warningCount;
+    private final CompileMetrics metrics;
+
+    CompileResult(Map<String, byte[]> classes,
+                  List<Diagnostic<? extends JavaFileObject>> diagnostics,
+                  CompileMetrics metrics) {
+        this(classes, diagnostics, count(diagnostics, true), count(diagnostics, false), metrics);
+    }
+
+    CompileResult(Map<String, byte[]> classes,
+                  List<Diagnostic<? extends JavaFileObject>> diagnostics,
+                  int errorCount, int warningCount,
+                  CompileMetrics metrics) {
+        this(classes, null, diagnostics, errorCount, warningCount, metrics);
+    }
+
+    private CompileResult(Map<String, byte[]> classes, Map<String, ByteBuffer> buffers,
+                          List<Diagnostic<? extends JavaFileObject>> diagnostics,
+                          int errorCount, int warningCount,
+                          CompileMetrics metrics) {
+        this.classes = classes;
+        this.buffers = buffers;
+        this.success = classes != null || buffers != null;
+        this.diagnostics = Collections.unmodifiableList(diagnostics);
+        this.errorCount = errorCount;
+        this.warningCount = warningCount;
+        this.metrics = metrics;
+    }
+
+    static CompileResult fromBuffers(Map<String, ByteBuffer> buffers,
+                                     List<Diagnostic<? extends JavaFileObject>> diagnostics,
+                                     int errorCount, int warningCount,
+                                     CompileMetrics metrics) {
+        return new CompileResult(null, buffers == null ? null : Collections.unmodifiableMap(buffers),
+                diagnostics, errorCount, warningCount, metrics);
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * Returns the .class bytes of all compiled classes keyed by class name,
+     * or null if the compilation failed.
+     */
+    public synchronized Map<String, byte[]> getClasses() {
+        if (classes == null && buffers != null) {
+            classes = MemoryJavaFileManager.toBytes(buffers);
+        }
+        return classes;
+    }
+
+    /**
+     * Returns read-only views of the compiled classes keyed by class name,
+     * or null if the compilation failed. Unlike {@link #getClasses()} this
+     * does not copy the class files javac wrote.
+     */
+    public synchronized Map<String, ByteBuffer> getClassBuffers() {
+        if (buffers == null && classes != null) {
+            Map<String, ByteBuffer> views = new HashMap<>();
+            for (Map.Entry<String, byte[]> c : classes.entrySet()) {
+                views.put(c.getKey(), ByteBuffer.wrap(c.getValue()).asReadOnlyBuffer());
+            }
+            buffers = Collections.unmodifiableMap(views);
+        }
+        return buffers;
+    }
+
+    /**
+     * Returns a new generation of the compiled classes, loaded on demand
+     * straight from the buffers of {@link #getClassBuffers()}.
+     *
+     * @throws IllegalStateException if the compilation failed
+     */
+    public MemoryClassLoader newClassLoader(ClassLoader parent) {
+        if (!success) {
+            throw new IllegalStateException("compilation failed");
+        }
+        return new MemoryClassLoader(parent, getClassBuffers());
+    }
+
+    /**
+     * Returns the diagnostics javac reported, up to the limits set with
+     * {@link Compiler#setDiagnosticLimits}.
+     */
+    public List<Diagnostic<? extends JavaFileObject>> getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * Returns the number of errors javac reported, including those beyond
+     * the limit.
+     */
+    public int getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * Returns the number of warnings and notes javac reported, including
+     * those beyond the limit.
+     */
+    public int getWarningCount() {
+        return warningCount;
+    }
+
+    /**
+     * Returns the timing and allocation figures of the compilation.
+     */
+    public CompileMetrics getMetrics() {
+        return metrics;
+    }
+
+    private static int count(List<Diagnostic<? extends JavaFileObject>> diagnostics, boolean errors) {
+        int count = 0;
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics) {
+            if ((diagnostic.getKind() == Diagnostic.Kind.ERROR) == errors) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
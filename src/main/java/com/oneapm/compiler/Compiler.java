@@ -2,22 +2,41 @@ package com.oneapm.compiler;
 
 import com.oneapm.util.Messages;
 
+import javax.tools.Diagnostic;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaFileObject;
 import javax.tools.StandardJavaFileManager;
 import javax.tools.ToolProvider;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 public class Compiler {
     private final CompilerHelper compilerHelper;
     // null means no preprocessing isf done.
     public List<String> includeDirs;
-    private StandardJavaFileManager stdManager;
+    private final JavaCompiler javac;
+    // pool of file managers, see acquireStdManager
+    private final Queue<StandardJavaFileManager> stdManagers = new ConcurrentLinkedQueue<>();
     private String packExtension = "class";
+    private volatile Executor workerPool;
+    private volatile Executor asyncExecutor;
+    private volatile IncrementalCompiler incrementalCompiler;
+    private volatile CompilationCache compilationCache;
+    private volatile DiskCompilationCache diskCache;
 
     public Compiler(String includePath, boolean generatePack) {
         if (includePath != null) {
@@ -26,7 +45,8 @@ public class Compiler {
             includeDirs.addAll(Arrays.asList(paths));
         }
         JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-        this.stdManager = compiler.getStandardFileManager(null, null, null);
+        this.javac = compiler;
+        releaseStdManager(compiler.getStandardFileManager(null, null, null));
         compilerHelper = new CompilerHelper(compiler, generatePack);
     }
 
@@ -42,20 +62,118 @@ public class Compiler {
         this(null);
     }
 
-    private static void usage(String msg) {
-        System.err.println(msg);
-        System.exit(1);
+    /**
+     * Enables caching of compilation results for this compiler. Pass null to
+     * turn caching off again. A cached result is only used while the sources
+     * javac read from the sourcepath for it are unchanged.
+     */
+    public void setCompilationCache(CompilationCache compilationCache) {
+        this.compilationCache = compilationCache;
     }
 
-    private static void usage() {
-        usage(Messages.get("btracec.usage"));
+    public CompilationCache getCompilationCache() {
+        return compilationCache;
+    }
+
+    /**
+     * Enables the persistent compilation cache for this compiler. It is
+     * consulted after the in-memory cache, if any. Pass null to turn it off.
+     */
+    public void setDiskCache(DiskCompilationCache diskCache) {
+        this.diskCache = diskCache;
+    }
+
+    public DiskCompilationCache getDiskCache() {
+        return diskCache;
+    }
+
+    /**
+     * Sets the javac options of this compiler, e.g. {@link CompileOptions#FAST}.
+     * Pass null to go back to {@link CompileOptions#DEFAULT}. Cached results
+     * are keyed by the options, so switching never serves classes compiled
+     * with other options.
+     */
+    public void setCompileOptions(CompileOptions compileOptions) {
+        compilerHelper.setCompileOptions(compileOptions != null ? compileOptions : CompileOptions.DEFAULT);
+    }
+
+    public CompileOptions getCompileOptions() {
+        return compilerHelper.getCompileOptions();
+    }
+
+    /**
+     * Limits how many errors and warnings each {@link CompileResult} keeps.
+     * Diagnostics beyond the limits are only counted, which keeps broken
+     * generated sources from piling up tens of thousands of them.
+     */
+    public void setDiagnosticLimits(int maxErrors, int maxWarnings) {
+        if (maxErrors < 0 || maxWarnings < 0) {
+            throw new IllegalArgumentException("negative diagnostic limit");
+        }
+        compilerHelper.setDiagnosticLimits(maxErrors, maxWarnings);
+    }
+
+    /**
+     * When on, a compilation is cancelled as soon as javac reports its first
+     * error; the result then holds that error, whatever the error limit, and
+     * the warnings reported before it.
+     */
+    public void setFailFast(boolean failFast) {
+        compilerHelper.setFailFast(failFast);
+    }
+
+    public boolean isFailFast() {
+        return compilerHelper.isFailFast();
+    }
+
+    private static UsageException usage(String msg) {
+        return new UsageException(msg);
+    }
+
+    private static UsageException usage() {
+        return usage(Messages.get("btracec.usage"));
+    }
+
+    /**
+     * Bad command line; the message is what to print.
+     */
+    private static final class UsageException extends Exception {
+        UsageException(String msg) {
+            super(msg);
+        }
     }
 
     // simple test main
     @SuppressWarnings("DefaultCharset")
     public static void main(String[] args) throws Exception {
+        PrintWriter err = new PrintWriter(System.err);
+        int status = run(args, null, err, null);
+        err.flush();
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Runs the command line of {@link #main}, resolving relative paths
+     * against baseDir (null for the current directory) and taking the
+     * compiler from the pool if one is given.
+     *
+     * @return the exit status
+     */
+    static int run(String[] args, File baseDir, PrintWriter err, CompilerPool pool) throws IOException {
+        try {
+            return runCommand(args, baseDir, err, pool);
+        } catch (UsageException exp) {
+            err.println(exp.getMessage());
+            return 1;
+        }
+    }
+
+    private static int runCommand(String[] args, File baseDir, PrintWriter err, CompilerPool pool)
+            throws IOException, UsageException {
         if (args.length == 0) {
-            usage();
+            throw usage();
         }
 
         String classPath = ".";
@@ -69,11 +187,14 @@ public class Compiler {
         boolean outputDirDefined = false;
         boolean includePathDefined = false;
         boolean trustedDefined = false;
+        boolean atomicWrites = false;
+        String jarFile = null;
+        boolean storedJar = false;
 
         for (; ; ) {
             if (args[count].charAt(0) == '-') {
                 if (args.length <= count + 1) {
-                    usage();
+                    throw usage();
                 }
                 if ((args[count].equals("-cp") ||
                         args[count].equals("-classpath")) && !classPathDefined) {
@@ -90,10 +211,16 @@ public class Compiler {
                     trustedDefined = true;
                 } else if (args[count].equals("-nopack")) {
                     generatePack = false;
+                } else if (args[count].equals("-atomic")) {
+                    atomicWrites = true;
+                } else if (args[count].equals("-jar") && jarFile == null) {
+                    jarFile = args[++count];
+                } else if (args[count].equals("-stored")) {
+                    storedJar = true;
                 } else if (args[count].equals("-packext")) {
                     packExtension = args[++count];
                 } else {
-                    usage();
+                    throw usage();
                 }
                 count++;
                 if (count >= args.length) {
@@ -105,62 +232,68 @@ public class Compiler {
         }
 
         if (args.length <= count) {
-            usage();
+            throw usage();
         }
 
         if (!generatePack && packExtension != null) {
-            usage("Can not specify pack extension if not using packs (-nopack)");
+            throw usage("Can not specify pack extension if not using packs (-nopack)");
         }
 
         File[] files = new File[args.length - count];
         for (int i = 0; i < files.length; i++) {
-            files[i] = new File(args[i + count]);
+            files[i] = resolve(baseDir, args[i + count]);
             if (!files[i].exists()) {
-                usage("File not found: " + files[i]);
+                throw usage("File not found: " + files[i]);
             }
         }
 
-        Compiler compiler = new Compiler(includePath, generatePack);
+        classPath = resolvePath(baseDir, classPath);
+        if (includePath != null) {
+            includePath = resolvePath(baseDir, includePath);
+        }
+        Compiler compiler = pool != null ? pool.get(includePath, generatePack, classPath)
+                : new Compiler(includePath, generatePack);
         classPath += File.pathSeparator + System.getProperty("java.class.path");
         Map<String, byte[]> classes = compiler.compile(files,
-                new PrintWriter(System.err), ".", classPath);
+                err, baseDir != null ? baseDir.getPath() : ".", classPath);
         if (classes != null) {
-            // write .class files.
-            for (Map.Entry<String, byte[]> c : classes.entrySet()) {
-                String name = c.getKey().replace(".", File.separator);
-                int index = name.lastIndexOf(File.separatorChar);
-                String dir = outputDir + File.separator;
-                if (index != -1) {
-                    dir += name.substring(0, index);
-                }
-                new File(dir).mkdirs();
-                String file;
-                if (index != -1) {
-                    file = name.substring(index + 1);
-                } else {
-                    file = name;
-                }
-                file += "." + (packExtension != null ? packExtension : "class");
-                File out = new File(dir, file);
-                try (FileOutputStream fos = new FileOutputStream(out)) {
-                    fos.write(c.getValue());
+            String extension = packExtension != null ? packExtension : "class";
+            if (jarFile != null) {
+                // write all classes into one jar.
+                try (JarClassWriter jar = new JarClassWriter(resolve(baseDir, jarFile), extension, storedJar)) {
+                    jar.write(classes);
                 }
+            } else {
+                // write .class files, skipping those that did not change.
+                new ClassOutputWriter(resolve(baseDir, outputDir).toPath(), extension,
+                        atomicWrites, CompilerExecutors.workers()).write(classes);
             }
+            return 0;
         } else {
             // fail
-            System.exit(1);
+            return 1;
+        }
+    }
+
+    private static File resolve(File baseDir, String path) {
+        File file = new File(path);
+        return (baseDir == null || file.isAbsolute()) ? file : new File(baseDir, path);
+    }
+
+    private static String resolvePath(File baseDir, String path) {
+        StringBuilder buf = new StringBuilder();
+        for (String entry : path.split(File.pathSeparator)) {
+            if (buf.length() > 0) {
+                buf.append(File.pathSeparatorChar);
+            }
+            buf.append(resolve(baseDir, entry).getPath());
         }
+        return buf.toString();
     }
 
     public Map<String, byte[]> compile(String fileName, String source,
                                        Writer err, String sourcePath, String classPath) {
-        // create a new memory JavaFileManager
-        MemoryJavaFileManager manager = new MemoryJavaFileManager(stdManager, includeDirs);
-
-        // prepare the compilation unit
-        List<JavaFileObject> compUnits = new ArrayList<>(1);
-        compUnits.add(MemoryJavaFileManager.makeStringSource(fileName, source, includeDirs));
-        return compile(manager, compUnits, err, sourcePath, classPath);
+        return classesOf(compileSource(fileName, source, err, sourcePath, classPath, null), err);
     }
 
     public Map<String, byte[]> compile(File file,
@@ -172,30 +305,318 @@ public class Compiler {
 
     public Map<String, byte[]> compile(File[] files,
                                        Writer err, String sourcePath, String classPath) {
-        Iterable<? extends JavaFileObject> compUnits =
-                stdManager.getJavaFileObjects(files);
-        List<JavaFileObject> preprocessedCompUnits = new ArrayList<>();
+        return classesOf(compileFiles(files, err, sourcePath, classPath, null), err);
+    }
+
+    public Map<String, byte[]> compile(
+            Iterable<? extends JavaFileObject> compUnits,
+            Writer err, String sourcePath, String classPath) {
+        CompileMetrics metrics = new CompileMetrics();
+        StandardJavaFileManager stdManager = acquireStdManager();
+        try {
+            return classesOf(compile(stdManager, compUnits, err, sourcePath, classPath, metrics, null), err);
+        } finally {
+            releaseStdManager(stdManager);
+            metrics.finish();
+        }
+    }
+
+    /**
+     * Compiles a source held in a string and returns the classes together
+     * with the diagnostics instead of printing them.
+     */
+    public CompileResult compileSource(String fileName, String source,
+                                       String sourcePath, String classPath) {
+        return compileSource(fileName, source, null, sourcePath, classPath, null);
+    }
+
+    /**
+     * Compiles a source held in a string and hands each class to the sink as
+     * soon as javac has generated it. The result then holds no classes.
+     * <p>
+     * javac may generate some classes before it finds an error in another
+     * one, so the sink can see classes of a compilation that fails; check
+     * the result before using them. Classes are not stored in the
+     * compilation caches, but cache hits are passed to the sink.
+     */
+    public CompileResult compileSource(String fileName, String source,
+                                       String sourcePath, String classPath, ClassSink sink) {
+        return compileSource(fileName, source, null, sourcePath, classPath, sink);
+    }
+
+    /**
+     * Compiles the given files and returns the classes together with the
+     * diagnostics instead of printing them.
+     */
+    public CompileResult compileFiles(File[] files, String sourcePath, String classPath) {
+        return compileFiles(files, null, sourcePath, classPath, null);
+    }
+
+    /**
+     * Compiles the given files and hands each class to the sink as soon as
+     * javac has generated it, see {@link #compileSource(String, String, String, String, ClassSink)}.
+     * In incremental mode the classes are passed on once the compilation
+     * has finished.
+     */
+    public CompileResult compileFiles(File[] files, String sourcePath, String classPath, ClassSink sink) {
+        return compileFiles(files, null, sourcePath, classPath, sink);
+    }
+
+    /**
+     * Turns incremental compilation of {@link #compile(File[], Writer, String, String)}
+     * on or off. When on, each call recompiles only the files that changed
+     * since the previous call plus the files depending on an API that
+     * changed, and reuses the earlier class bytes for the rest. Every call
+     * must then pass the complete set of files. Turning it off drops the
+     * remembered state.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incrementalCompiler = incremental ? new IncrementalCompiler() : null;
+    }
+
+    public boolean isIncremental() {
+        return incrementalCompiler != null;
+    }
+
+    /**
+     * Sets the pool {@link #compileAll} runs on, which also preprocesses the
+     * files of {@link #compileFiles} in parallel. Pass null to use the shared
+     * pool with one thread per available processor.
+     */
+    public void setWorkerPool(Executor workerPool) {
+        this.workerPool = workerPool;
+    }
+
+    /**
+     * Compiles many independent sources in parallel on the worker pool.
+     *
+     * @param sources source code keyed by file name
+     * @return one result per source, in the iteration order of sources
+     */
+    public Map<String, CompileResult> compileAll(Map<String, String> sources,
+                                                 final String sourcePath, final String classPath) {
+        Executor executor = workerPool != null ? workerPool : CompilerExecutors.workers();
+        Map<String, FutureTask<CompileResult>> tasks = new LinkedHashMap<>();
+        for (final Map.Entry<String, String> source : sources.entrySet()) {
+            FutureTask<CompileResult> task = new FutureTask<>(new Callable<CompileResult>() {
+                @Override
+                public CompileResult call() {
+                    return compileSource(source.getKey(), source.getValue(), sourcePath, classPath);
+                }
+            });
+            tasks.put(source.getKey(), task);
+            executor.execute(task);
+        }
+        Map<String, CompileResult> results = new LinkedHashMap<>();
+        for (Map.Entry<String, FutureTask<CompileResult>> task : tasks.entrySet()) {
+            results.put(task.getKey(), await(task.getValue()));
+        }
+        return results;
+    }
+
+    /**
+     * Sets the executor {@link #compileAsync} and {@link #compileFilesAsync}
+     * run on. Pass null for the default, which uses virtual threads on
+     * JDK 21+ and the shared worker pool on older runtimes.
+     */
+    public void setAsyncExecutor(Executor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    /**
+     * Compiles a source held in a string without blocking the caller.
+     */
+    public CompletableFuture<CompileResult> compileAsync(final String fileName, final String source,
+                                                         final String sourcePath, final String classPath) {
+        return CompletableFuture.supplyAsync(
+                () -> compileSource(fileName, source, sourcePath, classPath), asyncExecutor());
+    }
+
+    /**
+     * Compiles the given files without blocking the caller.
+     */
+    public CompletableFuture<CompileResult> compileFilesAsync(final File[] files,
+                                                              final String sourcePath, final String classPath) {
+        return CompletableFuture.supplyAsync(
+                () -> compileFiles(files, sourcePath, classPath), asyncExecutor());
+    }
+
+    private Executor asyncExecutor() {
+        Executor executor = asyncExecutor;
+        return executor != null ? executor : CompilerExecutors.async();
+    }
+
+    private CompileResult compileSource(String fileName, String source,
+                                        Writer err, String sourcePath, String classPath,
+                                        ClassSink sink) {
+        CompileMetrics metrics = new CompileMetrics();
+        // prepare the compilation unit
+        List<JavaFileObject> compUnits = new ArrayList<>(1);
+        compUnits.add(MemoryJavaFileManager.makeStringSource(fileName, source, includeDirs, metrics));
+        StandardJavaFileManager stdManager = acquireStdManager();
+        try {
+            return compile(stdManager, compUnits, err, sourcePath, classPath, metrics, sink);
+        } finally {
+            releaseStdManager(stdManager);
+            metrics.finish();
+        }
+    }
+
+    private CompileResult compileFiles(File[] files,
+                                       Writer err, String sourcePath, String classPath,
+                                       ClassSink sink) {
+        CompileMetrics metrics = new CompileMetrics();
+        StandardJavaFileManager stdManager = acquireStdManager();
         try {
-            for (JavaFileObject jfo : compUnits) {
-                preprocessedCompUnits.add(MemoryJavaFileManager.preprocessedFileObject(jfo, includeDirs));
+            Iterable<? extends JavaFileObject> compUnits =
+                    stdManager.getJavaFileObjects(files);
+            List<JavaFileObject> preprocessedCompUnits = MemoryJavaFileManager.preprocessedFileObjects(
+                    compUnits, includeDirs, metrics, workerPool != null ? workerPool : CompilerExecutors.workers());
+            IncrementalCompiler incremental = incrementalCompiler;
+            if (incremental != null) {
+                try {
+                    return drain(incremental.compile(compilerHelper, stdManager, includeDirs,
+                            preprocessedCompUnits, err, sourcePath, classPath, metrics), sink);
+                } catch (IOException ioExp) {
+                    throw new RuntimeException(ioExp);
+                }
             }
+            return compile(stdManager, preprocessedCompUnits, err, sourcePath, classPath, metrics, sink);
+        } finally {
+            releaseStdManager(stdManager);
+            metrics.finish();
+        }
+    }
+
+    private CompileResult compile(StandardJavaFileManager stdManager,
+                                  Iterable<? extends JavaFileObject> compUnits,
+                                  Writer err, String sourcePath, final String classPath,
+                                  CompileMetrics metrics, ClassSink sink) {
+        CompilationCache cache = compilationCache;
+        DiskCompilationCache disk = diskCache;
+        if (cache == null && disk == null) {
+            return compilerHelper.compile(newManager(stdManager, sink), compUnits, err, sourcePath, classPath, metrics);
+        }
+        String key;
+        try {
+            key = CompilationCache.key(compUnits, compilerHelper.options(sourcePath, classPath), classPath);
         } catch (IOException ioExp) {
             throw new RuntimeException(ioExp);
         }
-        return compile(preprocessedCompUnits, err, sourcePath, classPath);
+        Map<String, byte[]> classes = cache != null ? cache.get(key) : null;
+        if (classes != null && !isCurrent(stdManager, classes)) {
+            cache.stale();
+            classes = null;
+        }
+        if (classes == null && disk != null) {
+            classes = disk.get(key);
+            if (classes != null && !isCurrent(stdManager, classes)) {
+                disk.stale();
+                classes = null;
+            }
+            if (classes != null && cache != null) {
+                cache.put(key, classes);
+            }
+        }
+        if (classes != null) {
+            classes.remove(CompilationCache.SOURCE_READS);
+            return drain(new CompileResult(classes, Collections.<Diagnostic<? extends JavaFileObject>>emptyList(), metrics), sink);
+        }
+        MemoryJavaFileManager manager = newManager(stdManager, sink);
+        Map<String, String> sourceReads = new HashMap<>();
+        manager.setSourceReads(sourceReads);
+        CompileResult result = compilerHelper.compile(manager, compUnits, err, sourcePath, classPath, metrics);
+        if (result.isSuccess() && sink == null) {
+            Map<String, byte[]> entry = new HashMap<>(result.getClasses());
+            entry.put(CompilationCache.SOURCE_READS, CompilationCache.encodeSourceReads(sourceReads));
+            if (cache != null) {
+                cache.put(key, entry);
+            }
+            if (disk != null) {
+                disk.put(key, entry);
+            }
+        }
+        return result;
     }
 
-    public Map<String, byte[]> compile(
-            Iterable<? extends JavaFileObject> compUnits,
-            Writer err, String sourcePath, String classPath) {
-        // create a new memory JavaFileManager
+    private MemoryJavaFileManager newManager(StandardJavaFileManager stdManager, ClassSink sink) {
         MemoryJavaFileManager manager = new MemoryJavaFileManager(stdManager, includeDirs);
-        return compilerHelper.compile(manager, compUnits, err, sourcePath, classPath);
+        manager.setClassSink(sink);
+        return manager;
+    }
+
+    /**
+     * Tells whether the sourcepath files a cached result was compiled from
+     * still read the same.
+     */
+    private boolean isCurrent(StandardJavaFileManager stdManager, Map<String, byte[]> classes) {
+        byte[] sourceReads = classes.get(CompilationCache.SOURCE_READS);
+        if (sourceReads == null) {
+            return false;
+        }
+        for (Map.Entry<String, String> read : CompilationCache.decodeSourceReads(sourceReads).entrySet()) {
+            String hash = MemoryJavaFileManager.sourceHash(stdManager, new File(read.getKey()), includeDirs);
+            if (!read.getValue().equals(hash)) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private Map<String, byte[]> compile(MemoryJavaFileManager manager,
-                                        Iterable<? extends JavaFileObject> compUnits,
-                                        Writer err, String sourcePath, final String classPath) {
-        return compilerHelper.compile(manager, compUnits, err, sourcePath, classPath);
+    /**
+     * Passes the classes of a finished compilation to the sink, if any, and
+     * returns the result without them.
+     */
+    private static CompileResult drain(CompileResult result, ClassSink sink) {
+        if (sink == null || !result.isSuccess()) {
+            return result;
+        }
+        for (Map.Entry<String, ByteBuffer> c : result.getClassBuffers().entrySet()) {
+            sink.classGenerated(c.getKey(), c.getValue());
+        }
+        return new CompileResult(new HashMap<String, byte[]>(), result.getDiagnostics(),
+                result.getErrorCount(), result.getWarningCount(), result.getMetrics());
+    }
+
+    private Map<String, byte[]> classesOf(CompileResult result, Writer err) {
+        if (!result.isSuccess()) {
+            // print dignostics messages in case of failures.
+            compilerHelper.printDiagnostics(result, err);
+        }
+        return result.getClasses();
+    }
+
+    /**
+     * StandardJavaFileManager is not thread safe, so each compilation borrows
+     * one from the pool for its whole duration.
+     */
+    private StandardJavaFileManager acquireStdManager() {
+        StandardJavaFileManager stdManager = stdManagers.poll();
+        if (stdManager == null) {
+            stdManager = javac.getStandardFileManager(null, null, null);
+        }
+        return stdManager;
+    }
+
+    private void releaseStdManager(StandardJavaFileManager stdManager) {
+        stdManagers.offer(stdManager);
+    }
+
+    private static CompileResult await(FutureTask<CompileResult> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(exp);
+        } catch (ExecutionException exp) {
+            Throwable cause = exp.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
     }
 }
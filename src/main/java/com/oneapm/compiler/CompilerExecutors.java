@@ -0,0 +1,88 @@
+package com.oneapm.compiler;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared thread pools used when a {@link Compiler} is not given its own.
+ */
+final class CompilerExecutors {
+
+    private static volatile ExecutorService workers;
+    private static volatile Executor async;
+
+    private CompilerExecutors() {
+    }
+
+    /**
+     * Returns the shared pool of daemon threads, one per available processor,
+     * that runs batch compilations.
+     */
+    static ExecutorService workers() {
+        ExecutorService pool = workers;
+        if (pool == null) {
+            synchronized (CompilerExecutors.class) {
+                pool = workers;
+                if (pool == null) {
+                    pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                            daemonThreads("dynamic-compile-worker-"));
+                    workers = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Returns the executor asynchronous compilations run on by default: a
+     * virtual thread per task where the runtime offers it (JDK 21+), the
+     * shared worker pool otherwise. Looked up reflectively so the library
+     * still runs on Java 8.
+     */
+    static Executor async() {
+        Executor executor = async;
+        if (executor == null) {
+            synchronized (CompilerExecutors.class) {
+                executor = async;
+                if (executor == null) {
+                    executor = virtualThreads();
+                    if (executor == null) {
+                        executor = workers();
+                    }
+                    async = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    private static Executor virtualThreads() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) factory.invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException exp) {
+            return null;
+        } catch (InvocationTargetException exp) {
+            // preview API on JDK 19/20 without --enable-preview
+            return null;
+        }
+    }
+
+    static ThreadFactory daemonThreads(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
@@ -3,13 +3,12 @@ package com.oneapm.compiler;
 import com.sun.source.util.JavacTask;
 
 import javax.tools.Diagnostic;
-import javax.tools.Diagnostic.Kind;
-import javax.tools.DiagnosticCollector;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaFileObject;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -19,78 +18,108 @@ class CompilerHelper {
 
     private final JavaCompiler compiler;
 
+    private volatile CompileOptions compileOptions = CompileOptions.DEFAULT;
+    private volatile int maxErrors = Integer.MAX_VALUE;
+    private volatile int maxWarnings = Integer.MAX_VALUE;
+    private volatile boolean failFast;
+
     CompilerHelper(JavaCompiler compiler, boolean generatePack) {
         this.compiler = compiler;
         this.generatePack = generatePack;
     }
 
-    Map<String, byte[]> compile(MemoryJavaFileManager manager,
-                                Iterable<? extends JavaFileObject> compUnits,
-                                Writer err, String sourcePath, final String classPath) {
-        // to collect errors, warnings etc.
-        DiagnosticCollector<JavaFileObject> diagnostics =
-                new DiagnosticCollector<>();
+    CompileResult compile(MemoryJavaFileManager manager,
+                          Iterable<? extends JavaFileObject> compUnits,
+                          Writer err, String sourcePath, final String classPath,
+                          CompileMetrics metrics) {
+        // to collect errors, warnings etc. as they are reported
+        DiagnosticBuffer diagnostics = new DiagnosticBuffer(maxErrors, maxWarnings, failFast);
 
         // javac options
-        List<String> options = new ArrayList<>();
-        options.add("-Xlint:all");
-        options.add("-g:lines");
-        options.add("-deprecation");
-        options.add("-source");
-        options.add("1.7");
-        options.add("-target");
-        options.add("1.7");
-        if (sourcePath != null) {
-            options.add("-sourcepath");
-            options.add(sourcePath);
-        }
-
-        if (classPath != null) {
-            options.add("-classpath");
-            options.add(classPath);
-        }
+        List<String> options = options(sourcePath, classPath);
 
         // create a compilation task
-        Map<String, byte[]> result;
+        Map<String, ByteBuffer> result;
         try {
             JavacTask task = (JavacTask) compiler.getTask(err, manager, diagnostics, options, null, compUnits);
-            final PrintWriter perr = (err instanceof PrintWriter) ? (PrintWriter) err : new PrintWriter(err);
-
-            // print dignostics messages in case of failures.
-            if (task.call() == false || containsErrors(diagnostics)) {
-                for (Diagnostic diagnostic : diagnostics.getDiagnostics()) {
-                    printDiagnostic(diagnostic, perr);
-                }
-                perr.flush();
-                return null;
+            task.addTaskListener(metrics.listener());
+            manager.setMetrics(metrics);
+            if (task.call() == false || diagnostics.getErrorCount() > 0) {
+                result = null;
+            } else {
+                // collect .class bytes of all compiled classes
+                result = manager.getClassBuffers();
             }
-
-            // collect .class bytes of all compiled classes
-            result = manager.getClassBytes();
+        } catch (RuntimeException exp) {
+            if (!DiagnosticBuffer.isAbort(exp)) {
+                throw exp;
+            }
+            result = null;
         } finally {
             try {
                 manager.close();
             } catch (IOException exp) {
             }
         }
-        return result;
+        return CompileResult.fromBuffers(result, diagnostics.getDiagnostics(),
+                diagnostics.getErrorCount(), diagnostics.getWarningCount(), metrics);
     }
 
-    private void printDiagnostic(Diagnostic diagnostic, final PrintWriter perr) {
-        perr.println(diagnostic);
+    /**
+     * Prints the diagnostics of a failed compilation, in the way the
+     * Map returning compile methods report failures.
+     */
+    void printDiagnostics(CompileResult result, Writer err) {
+        final PrintWriter perr = (err instanceof PrintWriter) ? (PrintWriter) err : new PrintWriter(err);
+        for (Diagnostic diagnostic : result.getDiagnostics()) {
+            printDiagnostic(diagnostic, perr);
+        }
+        int dropped = result.getErrorCount() + result.getWarningCount() - result.getDiagnostics().size();
+        if (dropped > 0) {
+            perr.println(dropped + " more diagnostics not shown");
+        }
+        perr.flush();
+    }
+
+    void setCompileOptions(CompileOptions compileOptions) {
+        this.compileOptions = compileOptions;
+    }
+
+    CompileOptions getCompileOptions() {
+        return compileOptions;
+    }
+
+    void setDiagnosticLimits(int maxErrors, int maxWarnings) {
+        this.maxErrors = maxErrors;
+        this.maxWarnings = maxWarnings;
+    }
+
+    void setFailFast(boolean failFast) {
+        this.failFast = failFast;
+    }
+
+    boolean isFailFast() {
+        return failFast;
     }
 
     /**
-     * Checks if the list of diagnostic messages contains at least one error. Certain
-     * {@link JavacTask} implementations may return success error code even though errors were
-     * reported.
+     * Returns the javac options used for a compilation with the given paths.
      */
-    private boolean containsErrors(DiagnosticCollector<?> diagnostics) {
-        for (Diagnostic<?> diagnostic : diagnostics.getDiagnostics()) {
-            if (diagnostic.getKind() == Kind.ERROR) {
-                return true;
-            }
+    List<String> options(String sourcePath, String classPath) {
+        List<String> options = new ArrayList<>(compileOptions.getOptions());
+        if (sourcePath != null) {
+            options.add("-sourcepath");
+            options.add(sourcePath);
+        }
+
+        if (classPath != null) {
+            options.add("-classpath");
+            options.add(classPath);
         }
-        return false;
+        return options;
+    }
+
+    private void printDiagnostic(Diagnostic diagnostic, final PrintWriter perr) {
+        perr.println(diagnostic);
     }
 }
\ No newline at end of file
@@ -0,0 +1,48 @@
+package com.oneapm.compiler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Warm {@link Compiler} instances of a long-running process, one per
+ * include path, pack mode and classpath, so each keeps the file managers and
+ * cached results of one kind of build. The least recently used instance is
+ * dropped when there are too many.
+ */
+final class CompilerPool {
+
+    private final Map<String, Compiler> compilers;
+    private final int cacheEntries;
+
+    /**
+     * @param maxCompilers most instances kept
+     * @param cacheEntries size of the in-memory compilation cache of each
+     *                     instance, 0 for none
+     */
+    CompilerPool(final int maxCompilers, int cacheEntries) {
+        this.cacheEntries = cacheEntries;
+        this.compilers = new LinkedHashMap<String, Compiler>(16, .75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Compiler> eldest) {
+                return size() > maxCompilers;
+            }
+        };
+    }
+
+    synchronized Compiler get(String includePath, boolean generatePack, String classPath) {
+        String key = includePath + '\0' + generatePack + '\0' + classPath;
+        Compiler compiler = compilers.get(key);
+        if (compiler == null) {
+            compiler = new Compiler(includePath, generatePack);
+            if (cacheEntries > 0) {
+                compiler.setCompilationCache(new CompilationCache(cacheEntries));
+            }
+            compilers.put(key, compiler);
+        }
+        return compiler;
+    }
+
+    synchronized int size() {
+        return compilers.size();
+    }
+}
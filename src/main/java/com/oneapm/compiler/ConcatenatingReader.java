@@ -4,12 +4,32 @@ import java.io.BufferedReader;
 import java.io.FilterReader;
 import java.io.IOException;
 
+/**
+ * Joins lines ending with a backslash with the next line, and ends every
+ * other line with the platform line separator.
+ * <p>
+ * Characters are moved in bulk from an internal buffer to the caller's
+ * array; no objects are made per line or per call. A read returns what is
+ * at hand as soon as it has anything, and only reads the underlying reader
+ * when it has nothing yet, so it does not wait for input to fill the array.
+ */
 public class ConcatenatingReader extends FilterReader {
     private static final String NEW_LINE = System.getProperty("line.separator");
     private final BufferedReader inReader;
-    // Any leftover characters go here
-    private char[] curBuf;
-    private int curPos;
+    // Characters read from inReader but not yet consumed
+    private final char[] inBuf = new char[8192];
+    private int inPos;
+    private int inEnd;
+    private boolean eof;
+    // Characters of NEW_LINE still to be returned, from this index on
+    private int pendingNewline = NEW_LINE.length();
+    // Whether the previous character was a '\r', so a '\n' right after it
+    // belongs to the same line end
+    private boolean skipLF;
+    // Whether characters of an unterminated line were returned
+    private boolean partialLine;
+    private final char[] single = new char[1];
+    private char[] skipBuf;
 
     /**
      * This class requires that the input reader be a BufferedReader so
@@ -22,12 +42,11 @@ public class ConcatenatingReader extends FilterReader {
 
     @Override
     public int read() throws IOException {
-        char[] tmp = new char[1];
-        int num = read(tmp, 0, 1);
+        int num = read(single, 0, 1);
         if (num < 0) {
             return -1;
         }
-        return tmp[0];
+        return single[0];
     }
 
     // It's easier not to support mark/reset since we don't need it
@@ -48,74 +67,118 @@ public class ConcatenatingReader extends FilterReader {
 
     @Override
     public boolean ready() throws IOException {
-        return curBuf != null || inReader.ready();
+        return pendingNewline < NEW_LINE.length() || inPos < inEnd || inReader.ready();
     }
 
     @Override
     public int read(char[] cbuf, int off, int len) throws IOException {
-        if (curBuf == null) {
-            nextLine();
+        if (len == 0) {
+            return 0;
         }
-
-        if (curBuf == null) {
-            return -1;
-        }
-
-        int numRead = 0;
-
-        while ((len > 0) && (curBuf != null) && (curPos < curBuf.length)) {
-            cbuf[off] = curBuf[curPos];
-            ++curPos;
-            ++off;
-            --len;
-            ++numRead;
-            if (curPos == curBuf.length) {
-                nextLine();
+        int start = off;
+        int limit = off + len;
+        while (off < limit) {
+            if (pendingNewline < NEW_LINE.length()) {
+                cbuf[off++] = NEW_LINE.charAt(pendingNewline++);
+                continue;
+            }
+            if (inPos == inEnd && (off > start || !fill())) {
+                if (off == start && partialLine) {
+                    // the last line had no line end of its own
+                    partialLine = false;
+                    pendingNewline = 0;
+                    continue;
+                }
+                break;
+            }
+            char c = inBuf[inPos];
+            if (skipLF) {
+                skipLF = false;
+                if (c == '\n') {
+                    inPos++;
+                    continue;
+                }
+            }
+            if (c == '\n' || c == '\r') {
+                inPos++;
+                skipLF = c == '\r';
+                partialLine = false;
+                pendingNewline = 0;
+                continue;
+            }
+            if (c == '\\') {
+                if (inPos + 1 == inEnd && off > start) {
+                    // whether the backslash joins lines needs more input
+                    break;
+                }
+                if (inPos + 1 == inEnd && !fill()) {
+                    // a backslash ending the input joins with nothing
+                    inPos++;
+                    partialLine = false;
+                    continue;
+                }
+                char next = inBuf[inPos + 1];
+                if (next == '\n' || next == '\r') {
+                    inPos += 2;
+                    skipLF = next == '\r';
+                    partialLine = false;
+                    continue;
+                }
+            }
+            // copy up to the next character needing attention
+            int end = inPos + 1;
+            int max = Math.min(inEnd, inPos + (limit - off));
+            while (end < max) {
+                char d = inBuf[end];
+                if (d == '\n' || d == '\r' || d == '\\') {
+                    break;
+                }
+                end++;
             }
+            int n = end - inPos;
+            System.arraycopy(inBuf, inPos, cbuf, off, n);
+            inPos = end;
+            off += n;
+            partialLine = true;
         }
-
-        return numRead;
+        return off == start ? -1 : off - start;
     }
 
     @Override
     public long skip(long n) throws IOException {
+        if (skipBuf == null) {
+            skipBuf = new char[512];
+        }
         long numSkipped = 0;
-
         while (n > 0) {
-            int intN = (int) n;
-            char[] tmp = new char[intN];
-            int numRead = read(tmp, 0, intN);
-            n -= numRead;
-            numSkipped += numRead;
-            if (numRead < intN) {
+            int numRead = read(skipBuf, 0, (int) Math.min(n, skipBuf.length));
+            if (numRead < 0) {
                 break;
             }
+            n -= numRead;
+            numSkipped += numRead;
         }
         return numSkipped;
     }
 
-    private void nextLine() throws IOException {
-        String cur = inReader.readLine();
-        if (cur == null) {
-            curBuf = null;
-            return;
-        }
-        // The trailing newline was trimmed by the readLine() method. See
-        // whether we have to put it back or not, depending on whether the
-        // last character of the line is the concatenation character.
-        int numChars = cur.length();
-        boolean needNewline = true;
-        if ((numChars > 0) &&
-                (cur.charAt(cur.length() - 1) == '\\')) {
-            --numChars;
-            needNewline = false;
+    /**
+     * Reads more input, keeping the unconsumed characters. Returns false if
+     * there is no more.
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
         }
-        char[] buf = new char[numChars + (needNewline ? NEW_LINE.length() : 0)];
-        cur.getChars(0, numChars, buf, 0);
-        if (needNewline) {
-            NEW_LINE.getChars(0, NEW_LINE.length(), buf, numChars);
+        int remaining = inEnd - inPos;
+        System.arraycopy(inBuf, inPos, inBuf, 0, remaining);
+        inPos = 0;
+        inEnd = remaining;
+        int n = inReader.read(inBuf, inEnd, inBuf.length - inEnd);
+        if (n < 0) {
+            eof = true;
+            return false;
         }
-        curBuf = buf;
-        curPos = 0;
+        inEnd += n;
+        return true;
     }
 }
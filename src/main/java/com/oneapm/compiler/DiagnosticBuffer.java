@@ -0,0 +1,81 @@
+package com.oneapm.compiler;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaFileObject;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Receives the diagnostics of one compilation as javac reports them. Keeps
+ * at most maxErrors errors and maxWarnings warnings (notes count as
+ * warnings) and only counts the rest. Diagnostics are kept as they are;
+ * their messages are formatted only when someone asks for them.
+ * <p>
+ * In fail-fast mode the first error aborts the compilation by throwing
+ * {@link Abort} out of javac. That error is kept even if maxErrors is 0.
+ */
+final class DiagnosticBuffer implements DiagnosticListener<JavaFileObject> {
+
+    /**
+     * Thrown through javac to stop a fail-fast compilation.
+     */
+    static final class Abort extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Abort() {
+            super("compilation aborted on first error", null, false, false);
+        }
+    }
+
+    private final int maxErrors;
+    private final int maxWarnings;
+    private final boolean failFast;
+    private final List<Diagnostic<? extends JavaFileObject>> diagnostics = new ArrayList<>();
+    private int errorCount;
+    private int warningCount;
+
+    DiagnosticBuffer(int maxErrors, int maxWarnings, boolean failFast) {
+        this.maxErrors = maxErrors;
+        this.maxWarnings = maxWarnings;
+        this.failFast = failFast;
+    }
+
+    @Override
+    public synchronized void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+        if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+            if (errorCount++ < maxErrors || failFast) {
+                diagnostics.add(diagnostic);
+            }
+            if (failFast) {
+                throw new Abort();
+            }
+        } else if (warningCount++ < maxWarnings) {
+            diagnostics.add(diagnostic);
+        }
+    }
+
+    synchronized List<Diagnostic<? extends JavaFileObject>> getDiagnostics() {
+        return new ArrayList<>(diagnostics);
+    }
+
+    synchronized int getErrorCount() {
+        return errorCount;
+    }
+
+    synchronized int getWarningCount() {
+        return warningCount;
+    }
+
+    /**
+     * Tells whether the exception javac threw is (caused by) a fail-fast abort.
+     */
+    static boolean isAbort(Throwable exp) {
+        for (Throwable t = exp; t != null; t = t.getCause()) {
+            if (t instanceof Abort) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,497 @@
+package com.oneapm.compiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent store of compilation results that survives JVM restarts.
+ * <p>
+ * The store lives in a directory owned by one process at a time and is made of
+ * a memory-mapped hash index plus append-only data segments:
+ * <pre>
+ *   index          header + open-addressed slots (key digest, segment, offset, length, crc)
+ *   seg-N.dat      records: magic, key digest, payload length, payload crc, payload
+ *   lock           held with a {@link FileLock} while the cache is open
+ * </pre>
+ * A record is appended to the active segment before its index slot is written,
+ * and every read checks the record's key digest and CRC, so a crash at any
+ * point only loses entries, it never serves torn data. Lookups go through the
+ * mapped index and mapped segments, so no system call is made per entry.
+ * When the total segment size exceeds the configured cap the oldest segment is
+ * dropped as a whole.
+ * <p>
+ * Entries are keyed exactly like {@link CompilationCache}, and likewise
+ * carry the sourcepath files they were compiled from.
+ */
+public final class DiskCompilationCache implements Closeable {
+
+    private static final int INDEX_MAGIC = 0x44434958; // "DCIX"
+    private static final int RECORD_MAGIC = 0x44435243; // "DCRC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int KEY_SIZE = 32;
+    // key, segment, offset, length, crc
+    private static final int SLOT_SIZE = KEY_SIZE + 16;
+    private static final int RECORD_HEADER_SIZE = 4 + KEY_SIZE + 4 + 4;
+    private static final int TOMBSTONE = -1;
+    private static final int DEFAULT_SLOTS = 1 << 16;
+
+    private final File dir;
+    private final long maxBytes;
+    private final long segmentSize;
+    private final int slotCount;
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+    private final RandomAccessFile indexFile;
+    private final MappedByteBuffer index;
+    // segment id -> size in bytes, oldest first
+    private final TreeMap<Integer, Long> segments = new TreeMap<>();
+    private final Map<Integer, MappedByteBuffer> segmentMaps = new HashMap<>();
+    private RandomAccessFile activeFile;
+    private int activeSegment;
+    private long totalBytes;
+    private int usedSlots;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public DiskCompilationCache(File dir, long maxBytes) throws IOException {
+        this(dir, maxBytes, DEFAULT_SLOTS);
+    }
+
+    public DiskCompilationCache(File dir, long maxBytes, int slotCount) throws IOException {
+        if (maxBytes <= 0 || slotCount <= 0) {
+            throw new IllegalArgumentException("cache bounds must be positive");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create cache directory " + dir);
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.segmentSize = Math.max(1, Math.min(maxBytes / 4, Integer.MAX_VALUE));
+        this.lockFile = new RandomAccessFile(new File(dir, "lock"), "rw");
+        FileLock fileLock;
+        try {
+            fileLock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException exp) {
+            // already open in this JVM
+            fileLock = null;
+        }
+        this.lock = fileLock;
+        if (lock == null) {
+            lockFile.close();
+            throw new IOException("cache directory " + dir + " is in use");
+        }
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith("seg-") && name.endsWith(".dat")) {
+                    try {
+                        int id = Integer.parseInt(name.substring(4, name.length() - 4));
+                        segments.put(id, f.length());
+                        totalBytes += f.length();
+                    } catch (NumberFormatException exp) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
+
+        File indexPath = new File(dir, "index");
+        boolean fresh = !indexPath.exists();
+        this.indexFile = new RandomAccessFile(indexPath, "rw");
+        long indexSize = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+        if (!fresh && indexFile.length() >= HEADER_SIZE) {
+            indexFile.seek(0);
+            int magic = indexFile.readInt();
+            int version = indexFile.readInt();
+            int slots = indexFile.readInt();
+            if (magic == INDEX_MAGIC && version == VERSION && slots > 0 &&
+                    indexFile.length() == HEADER_SIZE + (long) slots * SLOT_SIZE) {
+                slotCount = slots;
+                indexSize = indexFile.length();
+            } else {
+                fresh = true;
+            }
+        } else {
+            fresh = true;
+        }
+        this.slotCount = slotCount;
+        if (fresh) {
+            // unknown or damaged index: start over
+            for (int id : segments.keySet()) {
+                new File(dir, segmentName(id)).delete();
+            }
+            segments.clear();
+            totalBytes = 0;
+            indexFile.setLength(0);
+            indexFile.setLength(indexSize);
+        }
+        this.index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+        if (fresh) {
+            index.putInt(0, INDEX_MAGIC);
+            index.putInt(4, VERSION);
+            index.putInt(8, slotCount);
+        }
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (segmentAt(slot) != 0) {
+                usedSlots++;
+            }
+        }
+
+        activeSegment = segments.isEmpty() ? 1 : segments.lastKey();
+        openActive();
+    }
+
+    /**
+     * Counts an entry get returned that turned out to be out of date as a
+     * miss.
+     */
+    void stale() {
+        hits.decrementAndGet();
+        misses.incrementAndGet();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public synchronized long sizeInBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Returns the class map stored for the key or null if there is none or the
+     * stored record is unreadable.
+     */
+    synchronized Map<String, byte[]> get(String key) {
+        byte[] digest = fromHex(key);
+        int slot = find(digest);
+        if (slot < 0) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            Map<String, byte[]> classes = read(digest, segmentAt(slot), intAt(slot, 4), intAt(slot, 8), intAt(slot, 12));
+            if (classes != null) {
+                hits.incrementAndGet();
+                return classes;
+            }
+        } catch (IOException exp) {
+            // fall through and treat as miss
+        }
+        setSegment(slot, TOMBSTONE);
+        misses.incrementAndGet();
+        return null;
+    }
+
+    synchronized void put(String key, Map<String, byte[]> classes) {
+        try {
+            byte[] digest = fromHex(key);
+            byte[] payload = encode(classes);
+            int recordSize = RECORD_HEADER_SIZE + payload.length;
+            if (recordSize > segmentSize) {
+                return;
+            }
+            // make room in the index first, as that may drop segments
+            int slot = find(digest);
+            if (slot < 0 && usedSlots + 1 > maxUsedSlots()) {
+                compactIndex();
+            }
+            if (activeFile.length() + recordSize > segmentSize) {
+                rollSegment();
+            }
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+            int crcValue = (int) crc.getValue();
+            ByteBuffer record = ByteBuffer.allocate(recordSize);
+            record.putInt(RECORD_MAGIC).put(digest).putInt(payload.length).putInt(crcValue).put(payload);
+            record.flip();
+            long offset = activeFile.length();
+            FileChannel channel = activeFile.getChannel();
+            while (record.hasRemaining()) {
+                channel.write(record, offset + record.position());
+            }
+            totalBytes += recordSize;
+            segments.put(activeSegment, offset + recordSize);
+
+            // data is in place, now publish it in the index
+            if (slot < 0) {
+                slot = freeSlot(digest);
+                if (slot < 0) {
+                    return;
+                }
+                usedSlots++;
+            }
+            index.putInt(slotOffset(slot) + KEY_SIZE + 4, (int) offset);
+            index.putInt(slotOffset(slot) + KEY_SIZE + 8, recordSize);
+            index.putInt(slotOffset(slot) + KEY_SIZE + 12, crcValue);
+            for (int i = 0; i < KEY_SIZE; i++) {
+                index.put(slotOffset(slot) + i, digest[i]);
+            }
+            setSegment(slot, activeSegment);
+
+            while (totalBytes > maxBytes && segments.size() > 1) {
+                evict(segments.firstKey());
+            }
+        } catch (IOException exp) {
+            // the cache is an optimization only; a failed write is a future miss
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            index.force();
+            activeFile.close();
+            indexFile.close();
+        } finally {
+            segmentMaps.clear();
+            lock.release();
+            lockFile.close();
+        }
+    }
+
+    //----------------------------------------------------------------------
+    // Internals only below this point
+    //
+    private void openActive() throws IOException {
+        activeFile = new RandomAccessFile(new File(dir, segmentName(activeSegment)), "rw");
+        if (!segments.containsKey(activeSegment)) {
+            segments.put(activeSegment, activeFile.length());
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        activeFile.close();
+        activeSegment++;
+        openActive();
+    }
+
+    private void evict(int segment) {
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (segmentAt(slot) == segment) {
+                setSegment(slot, TOMBSTONE);
+            }
+        }
+        Long size = segments.remove(segment);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        segmentMaps.remove(segment);
+        new File(dir, segmentName(segment)).delete();
+    }
+
+    /**
+     * Rehashes live slots in place to get rid of tombstones, dropping old
+     * segments if live entries alone fill the table. If they all live in the
+     * active segment, a new segment is started so the old one can go.
+     */
+    private void compactIndex() throws IOException {
+        while (true) {
+            List<byte[]> live = new ArrayList<>();
+            for (int slot = 0; slot < slotCount; slot++) {
+                int segment = segmentAt(slot);
+                if (segment > 0) {
+                    byte[] raw = new byte[SLOT_SIZE];
+                    for (int i = 0; i < SLOT_SIZE; i++) {
+                        raw[i] = index.get(slotOffset(slot) + i);
+                    }
+                    live.add(raw);
+                }
+                if (segment != 0) {
+                    setSegment(slot, 0);
+                }
+            }
+            usedSlots = 0;
+            for (byte[] raw : live) {
+                int slot = freeSlot(Arrays.copyOf(raw, KEY_SIZE));
+                for (int i = 0; i < SLOT_SIZE; i++) {
+                    index.put(slotOffset(slot) + i, raw[i]);
+                }
+                usedSlots++;
+            }
+            if (usedSlots + 1 <= maxUsedSlots()) {
+                return;
+            }
+            if (segments.size() <= 1) {
+                rollSegment();
+            }
+            evict(segments.firstKey());
+        }
+    }
+
+    private int find(byte[] digest) {
+        int slot = home(digest);
+        for (int probes = 0; probes < slotCount; probes++) {
+            int segment = segmentAt(slot);
+            if (segment == 0) {
+                return -1;
+            }
+            if (segment > 0 && keyMatches(slot, digest)) {
+                return slot;
+            }
+            slot = (slot + 1) % slotCount;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the first empty or tombstone slot on the digest's probe
+     * sequence, or -1 if every slot is live.
+     */
+    private int freeSlot(byte[] digest) {
+        int slot = home(digest);
+        for (int probes = 0; probes < slotCount; probes++) {
+            int segment = segmentAt(slot);
+            if (segment <= 0) {
+                if (segment == TOMBSTONE) {
+                    // reused tombstones were already counted as used
+                    usedSlots--;
+                }
+                return slot;
+            }
+            slot = (slot + 1) % slotCount;
+        }
+        return -1;
+    }
+
+    // load factor kept by compaction; at least one slot, so tiny tables work
+    private int maxUsedSlots() {
+        return Math.max(1, slotCount * 3 / 4);
+    }
+
+    private int home(byte[] digest) {
+        int h = ((digest[0] & 0xFF) << 24) | ((digest[1] & 0xFF) << 16) |
+                ((digest[2] & 0xFF) << 8) | (digest[3] & 0xFF);
+        return (h & 0x7FFFFFFF) % slotCount;
+    }
+
+    private boolean keyMatches(int slot, byte[] digest) {
+        int base = slotOffset(slot);
+        for (int i = 0; i < KEY_SIZE; i++) {
+            if (index.get(base + i) != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private int segmentAt(int slot) {
+        return intAt(slot, 0);
+    }
+
+    private void setSegment(int slot, int segment) {
+        index.putInt(slotOffset(slot) + KEY_SIZE, segment);
+    }
+
+    private int intAt(int slot, int field) {
+        return index.getInt(slotOffset(slot) + KEY_SIZE + field);
+    }
+
+    private Map<String, byte[]> read(byte[] digest, int segment, int offset, int length, int crcValue)
+            throws IOException {
+        if (!segments.containsKey(segment) || length < RECORD_HEADER_SIZE) {
+            return null;
+        }
+        MappedByteBuffer map = segmentMaps.get(segment);
+        if (map == null || map.capacity() < (long) offset + length) {
+            try (RandomAccessFile raf = new RandomAccessFile(new File(dir, segmentName(segment)), "r")) {
+                if (raf.length() < (long) offset + length) {
+                    return null;
+                }
+                map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            }
+            segmentMaps.put(segment, map);
+        }
+        ByteBuffer record = map.duplicate();
+        record.position(offset);
+        if (record.getInt() != RECORD_MAGIC) {
+            return null;
+        }
+        for (int i = 0; i < KEY_SIZE; i++) {
+            if (record.get() != digest[i]) {
+                return null;
+            }
+        }
+        int payloadLength = record.getInt();
+        if (payloadLength != length - RECORD_HEADER_SIZE || record.getInt() != crcValue) {
+            return null;
+        }
+        byte[] payload = new byte[payloadLength];
+        record.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        if ((int) crc.getValue() != crcValue) {
+            return null;
+        }
+        return decode(payload);
+    }
+
+    private static byte[] encode(Map<String, byte[]> classes) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(classes.size());
+        for (Map.Entry<String, byte[]> c : classes.entrySet()) {
+            out.writeUTF(c.getKey());
+            out.writeInt(c.getValue().length);
+            out.write(c.getValue());
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private static Map<String, byte[]> decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int count = in.readInt();
+        Map<String, byte[]> classes = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            byte[] code = new byte[in.readInt()];
+            in.readFully(code);
+            classes.put(name, code);
+        }
+        return classes;
+    }
+
+    private static String segmentName(int id) {
+        return "seg-" + id + ".dat";
+    }
+
+    private static byte[] fromHex(String key) {
+        byte[] digest = new byte[KEY_SIZE];
+        for (int i = 0; i < KEY_SIZE; i++) {
+            digest[i] = (byte) ((Character.digit(key.charAt(2 * i), 16) << 4) |
+                    Character.digit(key.charAt(2 * i + 1), 16));
+        }
+        return digest;
+    }
+}
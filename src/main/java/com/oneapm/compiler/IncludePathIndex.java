@@ -0,0 +1,118 @@
+package com.oneapm.compiler;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Answers "does this include directory contain that file" from directory
+ * listings instead of a stat per include directory per #include. Each
+ * directory is listed once; its modification time is checked again at most
+ * once per refresh interval, and it is listed anew only when that changed.
+ * A header created meanwhile is therefore seen with a delay of up to one
+ * interval.
+ * <p>
+ * Listings hold names as they are on disk. A name that only matches one
+ * when case is ignored is checked with {@link File#exists}, so that on
+ * case-insensitive file systems #include "Foo.h" still finds foo.h.
+ */
+final class IncludePathIndex {
+
+    private static final long REFRESH_MILLIS = 1000;
+
+    private static final IncludePathIndex shared = new IncludePathIndex(REFRESH_MILLIS);
+
+    private static final class Listing {
+        final long lastModified;
+        final Set<String> names;
+        final Set<String> lowerCaseNames;
+        volatile long checked;
+
+        Listing(long lastModified, Set<String> names, long checked) {
+            this.lastModified = lastModified;
+            this.names = names;
+            this.lowerCaseNames = new HashSet<>();
+            for (String name : names) {
+                lowerCaseNames.add(name.toLowerCase(Locale.ROOT));
+            }
+            this.checked = checked;
+        }
+
+        boolean contains(String dir, String name) {
+            if (names.contains(name)) {
+                return true;
+            }
+            // the file system decides whether case matters
+            return lowerCaseNames.contains(name.toLowerCase(Locale.ROOT)) && new File(dir, name).exists();
+        }
+    }
+
+    private final long refreshMillis;
+    private final ConcurrentMap<String, Listing> listings = new ConcurrentHashMap<>();
+
+    IncludePathIndex(long refreshMillis) {
+        this.refreshMillis = refreshMillis;
+    }
+
+    static IncludePathIndex shared() {
+        return shared;
+    }
+
+    /**
+     * Tells whether dir/name exists. name may contain '/' separated
+     * subdirectories; names going up with ".." or absolute names are
+     * checked on the file system directly.
+     */
+    boolean exists(String dir, String name) {
+        if (name.isEmpty() || new File(name).isAbsolute() || name.contains("..")) {
+            return new File(dir + File.separator + name).exists();
+        }
+        String current = dir;
+        int start = 0;
+        while (true) {
+            int end = name.indexOf('/', start);
+            String part = end == -1 ? name.substring(start) : name.substring(start, end);
+            if (!part.isEmpty() && !part.equals(".")) {
+                if (!listing(current).contains(current, part)) {
+                    return false;
+                }
+                current = current + File.separator + part;
+            }
+            if (end == -1) {
+                return true;
+            }
+            start = end + 1;
+        }
+    }
+
+    void clear() {
+        listings.clear();
+    }
+
+    private Listing listing(String dir) {
+        long now = System.currentTimeMillis();
+        Listing listing = listings.get(dir);
+        if (listing != null && now - listing.checked < refreshMillis) {
+            return listing;
+        }
+        File file = new File(dir);
+        long lastModified = file.lastModified();
+        if (listing != null && listing.lastModified == lastModified) {
+            listing.checked = now;
+            return listing;
+        }
+        String[] names = file.list();
+        Set<String> set = names == null ? Collections.<String>emptySet()
+                : new HashSet<>(Arrays.asList(names));
+        // with coarse timestamps a file added right after listing may not
+        // change the time; do not trust a time that recent
+        listing = new Listing(now - lastModified < 2000 ? -1 : lastModified, set, now);
+        listings.put(dir, listing);
+        return listing;
+    }
+}
@@ -0,0 +1,267 @@
+package com.oneapm.compiler;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers what the previous compilation of a set of files produced, so that
+ * the next compilation of the same set only recompiles what is needed:
+ * <ul>
+ * <li>files whose (preprocessed) content changed, and</li>
+ * <li>files referring to a class whose API changed, was added or was removed,
+ * repeated until no more APIs change. The API of a class includes what it
+ * inherits, so a change counts for all of its subtypes as well.</li>
+ * </ul>
+ * The classes of all other files are reused and handed to javac as class
+ * inputs. A change to a compile-time constant recompiles everything, because
+ * javac inlines constants into their users. A change of the javac options or
+ * classpath discards the remembered state.
+ * <p>
+ * Every call is expected to pass the complete set of files; files missing
+ * from a call are treated as deleted.
+ */
+final class IncrementalCompiler {
+
+    // constants fingerprint of a class without constants: the digest of nothing
+    private static final String NO_CONSTANTS = CompilationCache.toHex(CompilationCache.newDigest().digest());
+
+    private static final class SourceState {
+        final String hash;
+        final Set<String> classNames;
+        final Set<String> references;
+
+        SourceState(String hash, Set<String> classNames, Set<String> references) {
+            this.hash = hash;
+            this.classNames = classNames;
+            this.references = references;
+        }
+    }
+
+    private static final class ClassState {
+        final byte[] code;
+        final ClassFileInfo info;
+
+        ClassState(byte[] code, ClassFileInfo info) {
+            this.code = code;
+            this.info = info;
+        }
+    }
+
+    private String configKey;
+    // keyed by source URI
+    private Map<String, SourceState> sources = new HashMap<>();
+    // keyed by class name
+    private Map<String, ClassState> classes = new HashMap<>();
+
+    synchronized CompileResult compile(CompilerHelper compilerHelper, JavaFileManager stdManager,
+                                       List<String> includeDirs, List<JavaFileObject> compUnits,
+                                       Writer err, String sourcePath, String classPath,
+                                       CompileMetrics metrics) throws IOException {
+        String config = CompilationCache.key(Collections.<JavaFileObject>emptyList(),
+                compilerHelper.options(sourcePath, classPath), classPath);
+        boolean sameConfig = config.equals(configKey);
+        // work on copies so that a failed compilation leaves the state untouched
+        Map<String, SourceState> newSources = sameConfig ? new HashMap<>(sources) : new HashMap<String, SourceState>();
+        Map<String, ClassState> newClasses = sameConfig ? new HashMap<>(classes) : new HashMap<String, ClassState>();
+
+        Map<String, JavaFileObject> current = new LinkedHashMap<>();
+        Map<String, String> hashes = new HashMap<>();
+        Set<String> toCompile = new LinkedHashSet<>();
+        for (JavaFileObject jfo : compUnits) {
+            String uri = jfo.toUri().toString();
+            MessageDigest md = CompilationCache.newDigest();
+            CompilationCache.update(md, jfo.getCharContent(true));
+            String hash = CompilationCache.toHex(md.digest());
+            current.put(uri, jfo);
+            hashes.put(uri, hash);
+            SourceState old = newSources.get(uri);
+            if (old == null || !old.hash.equals(hash)) {
+                toCompile.add(uri);
+            }
+        }
+
+        // forget deleted files; whoever used their classes has to be recompiled
+        Set<String> changedApi = new HashSet<>();
+        boolean constantsChanged = false;
+        for (Iterator<Map.Entry<String, SourceState>> iter = newSources.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<String, SourceState> source = iter.next();
+            if (!current.containsKey(source.getKey())) {
+                for (String name : source.getValue().classNames) {
+                    constantsChanged |= removeClass(newClasses, name);
+                    changedApi.add(name);
+                }
+                iter.remove();
+            }
+        }
+
+        Set<String> compiled = new HashSet<>();
+        if (constantsChanged) {
+            toCompile.addAll(current.keySet());
+        } else {
+            toCompile.addAll(dependents(newSources, newClasses, changedApi, compiled));
+        }
+
+        List<Diagnostic<? extends JavaFileObject>> diagnostics = new ArrayList<>();
+        int errorCount = 0;
+        int warningCount = 0;
+        Map<String, byte[]> untracked = new HashMap<>();
+        while (!toCompile.isEmpty()) {
+            // everything not compiled in this round is served from memory
+            Map<String, byte[]> classInputs = new HashMap<>();
+            for (Map.Entry<String, SourceState> source : newSources.entrySet()) {
+                if (!toCompile.contains(source.getKey())) {
+                    for (String name : source.getValue().classNames) {
+                        classInputs.put(name, newClasses.get(name).code);
+                    }
+                }
+            }
+            List<JavaFileObject> round = new ArrayList<>();
+            for (Map.Entry<String, JavaFileObject> unit : current.entrySet()) {
+                if (toCompile.contains(unit.getKey())) {
+                    round.add(unit.getValue());
+                }
+            }
+
+            MemoryJavaFileManager manager = new MemoryJavaFileManager(stdManager, includeDirs);
+            manager.setClassInputs(classInputs);
+            Map<String, URI> origins = manager.getClassOrigins();
+            CompileResult result = compilerHelper.compile(manager, round, err, sourcePath, classPath, metrics);
+            diagnostics.addAll(result.getDiagnostics());
+            errorCount += result.getErrorCount();
+            warningCount += result.getWarningCount();
+            if (!result.isSuccess()) {
+                return new CompileResult(null, diagnostics, errorCount, warningCount, metrics);
+            }
+
+            Map<String, Set<String>> produced = new HashMap<>();
+            for (String name : result.getClasses().keySet()) {
+                URI origin = origins.get(name);
+                String uri = origin != null ? origin.toString() : null;
+                if (uri != null && toCompile.contains(uri)) {
+                    Set<String> names = produced.get(uri);
+                    if (names == null) {
+                        names = new HashSet<>();
+                        produced.put(uri, names);
+                    }
+                    names.add(name);
+                } else {
+                    // implicitly compiled from the sourcepath
+                    untracked.put(name, result.getClasses().get(name));
+                }
+            }
+
+            changedApi = new HashSet<>();
+            constantsChanged = false;
+            for (String uri : toCompile) {
+                Set<String> names = produced.containsKey(uri) ? produced.get(uri) : Collections.<String>emptySet();
+                Set<String> references = new HashSet<>();
+                for (String name : names) {
+                    byte[] code = result.getClasses().get(name);
+                    ClassFileInfo info = ClassFileInfo.parse(code);
+                    references.addAll(info.references);
+                    ClassState old = newClasses.put(name, new ClassState(code, info));
+                    if (old == null || !old.info.abi.equals(info.abi)) {
+                        changedApi.add(name);
+                    }
+                    if (old != null && !old.info.constants.equals(info.constants)) {
+                        constantsChanged = true;
+                    }
+                }
+                SourceState old = newSources.put(uri, new SourceState(hashes.get(uri), names, references));
+                if (old != null) {
+                    for (String name : old.classNames) {
+                        if (!names.contains(name)) {
+                            constantsChanged |= removeClass(newClasses, name);
+                            changedApi.add(name);
+                        }
+                    }
+                }
+            }
+            compiled.addAll(toCompile);
+
+            toCompile = new LinkedHashSet<>();
+            if (constantsChanged) {
+                for (String uri : current.keySet()) {
+                    if (!compiled.contains(uri)) {
+                        toCompile.add(uri);
+                    }
+                }
+            } else {
+                toCompile.addAll(dependents(newSources, newClasses, changedApi, compiled));
+            }
+        }
+
+        configKey = config;
+        sources = newSources;
+        classes = newClasses;
+
+        Map<String, byte[]> result = new HashMap<>(untracked);
+        for (String uri : current.keySet()) {
+            for (String name : sources.get(uri).classNames) {
+                result.put(name, classes.get(name).code);
+            }
+        }
+        return new CompileResult(result, diagnostics, errorCount, warningCount, metrics);
+    }
+
+    synchronized void reset() {
+        configKey = null;
+        sources = new HashMap<>();
+        classes = new HashMap<>();
+    }
+
+    /**
+     * Removes a class and tells whether it declared compile-time constants.
+     */
+    private static boolean removeClass(Map<String, ClassState> classes, String name) {
+        ClassState old = classes.remove(name);
+        return old != null && !old.info.constants.equals(NO_CONSTANTS);
+    }
+
+    private static Set<String> dependents(Map<String, SourceState> sources, Map<String, ClassState> classes,
+                                          Set<String> changedApi, Set<String> exclude) {
+        Set<String> result = new LinkedHashSet<>();
+        if (changedApi.isEmpty()) {
+            return result;
+        }
+        addSubtypes(classes, changedApi);
+        for (Map.Entry<String, SourceState> source : sources.entrySet()) {
+            if (!exclude.contains(source.getKey()) &&
+                    !Collections.disjoint(source.getValue().references, changedApi)) {
+                result.add(source.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the known subtypes of the given classes, direct or not.
+     */
+    private static void addSubtypes(Map<String, ClassState> classes, Set<String> names) {
+        boolean added = true;
+        while (added) {
+            added = false;
+            for (Map.Entry<String, ClassState> c : classes.entrySet()) {
+                if (!names.contains(c.getKey()) && !Collections.disjoint(c.getValue().info.supertypes, names)) {
+                    names.add(c.getKey());
+                    added = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.oneapm.compiler;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.GregorianCalendar;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes compiled classes into a single jar instead of one file per class.
+ * Use it either with {@link #write(Map)} or as the {@link ClassSink} of a
+ * compilation, then close it.
+ * <p>
+ * The output only depends on the classes: every entry gets the same fixed
+ * timestamp, and {@link #write(Map)} writes entries sorted by name. As a sink
+ * the entries are written in the order javac generates them, which is the
+ * same for the same sources. Stored (uncompressed) entries can be read
+ * straight from a memory-mapped jar.
+ */
+public final class JarClassWriter implements ClassSink, Closeable {
+
+    // 1980-02-01 00:00 local time; zip timestamps are local, so the stored
+    // value is the same in every time zone
+    private static final long ENTRY_TIME = new GregorianCalendar(1980, 1, 1).getTimeInMillis();
+    private static final byte[] MANIFEST =
+            "Manifest-Version: 1.0\r\nCreated-By: dynamic-compile\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+
+    private final ZipOutputStream out;
+    private final String extension;
+    private final boolean stored;
+    private final byte[] copyBuf = new byte[8192];
+
+    /**
+     * @param extension extension of the class entries, "class" unless packs
+     *                  with another extension are generated
+     * @param stored    whether to write the entries uncompressed
+     */
+    public JarClassWriter(OutputStream out, String extension, boolean stored) throws IOException {
+        this(out, extension, stored, false);
+    }
+
+    public JarClassWriter(File jarFile, String extension, boolean stored) throws IOException {
+        this(new BufferedOutputStream(new FileOutputStream(jarFile), 64 * 1024), extension, stored, true);
+    }
+
+    /**
+     * @param owned whether to close out if the manifest cannot be written
+     */
+    JarClassWriter(OutputStream out, String extension, boolean stored, boolean owned) throws IOException {
+        this.out = new ZipOutputStream(out);
+        this.extension = extension;
+        this.stored = stored;
+        try {
+            putEntry("META-INF/MANIFEST.MF", ByteBuffer.wrap(MANIFEST));
+        } catch (Throwable exp) {
+            if (owned) {
+                // not this.out, which would try to finish the broken jar first
+                try {
+                    out.close();
+                } catch (IOException closeExp) {
+                    exp.addSuppressed(closeExp);
+                }
+            }
+            throw exp;
+        }
+    }
+
+    /**
+     * Writes the classes sorted by name.
+     */
+    public synchronized void write(Map<String, byte[]> classes) throws IOException {
+        for (Map.Entry<String, byte[]> c : new TreeMap<>(classes).entrySet()) {
+            putEntry(entryName(c.getKey()), ByteBuffer.wrap(c.getValue()));
+        }
+    }
+
+    @Override
+    public synchronized void classGenerated(String className, ByteBuffer code) {
+        try {
+            putEntry(entryName(className), code.duplicate());
+        } catch (IOException exp) {
+            throw new RuntimeException(exp);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private String entryName(String className) {
+        return className.replace('.', '/') + "." + extension;
+    }
+
+    private void putEntry(String name, ByteBuffer code) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(ENTRY_TIME);
+        if (stored) {
+            CRC32 crc = new CRC32();
+            crc.update(code.duplicate());
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(code.remaining());
+            entry.setCompressedSize(code.remaining());
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        if (code.hasArray()) {
+            out.write(code.array(), code.arrayOffset() + code.position(), code.remaining());
+        } else {
+            // read-only views do not expose their array
+            while (code.hasRemaining()) {
+                int n = Math.min(code.remaining(), copyBuf.length);
+                code.get(copyBuf, 0, n);
+                out.write(copyBuf, 0, n);
+            }
+        }
+        out.closeEntry();
+    }
+}
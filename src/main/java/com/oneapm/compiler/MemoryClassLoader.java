@@ -0,0 +1,105 @@
+package com.oneapm.compiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.ProtectionDomain;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Loads the classes of one compilation straight from their bytes. A class is
+ * defined the first time it is loaded, not up front. The loader delegates to
+ * its parent first, like any other class loader, and is parallel capable.
+ * <p>
+ * Each loader is one generation of classes: to reload, compile again and
+ * load from a new loader. {@link #close()} drops the bytes of the
+ * generation; its classes are unloaded once the loader and the classes are
+ * no longer referenced.
+ */
+public class MemoryClassLoader extends ClassLoader implements Closeable {
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    private volatile Map<String, ByteBuffer> classes;
+
+    /**
+     * @param classes class bytes keyed by class name, as returned by the
+     *                compile methods; the arrays are used as is and must
+     *                not change afterwards
+     */
+    public MemoryClassLoader(Map<String, byte[]> classes, ClassLoader parent) {
+        this(parent, wrap(classes));
+    }
+
+    /**
+     * @param classes class files keyed by class name, as returned by
+     *                {@link CompileResult#getClassBuffers()}; the buffers
+     *                are used as is and must not change afterwards
+     */
+    MemoryClassLoader(ClassLoader parent, Map<String, ByteBuffer> classes) {
+        super(parent);
+        this.classes = classes;
+    }
+
+    public MemoryClassLoader(Map<String, byte[]> classes) {
+        this(classes, MemoryClassLoader.class.getClassLoader());
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        ByteBuffer code = classes.get(name);
+        if (code == null) {
+            throw new ClassNotFoundException(name);
+        }
+        // defining consumes the buffer
+        return defineClass(name, code.duplicate(), (ProtectionDomain) null);
+    }
+
+    /**
+     * Serves "pkg/Name.class" from the class bytes if the parent does not
+     * have it.
+     */
+    @Override
+    public InputStream getResourceAsStream(String name) {
+        InputStream in = super.getResourceAsStream(name);
+        if (in == null && name.endsWith(".class")) {
+            String className = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+            ByteBuffer code = classes.get(className);
+            if (code != null) {
+                byte[] bytes = new byte[code.remaining()];
+                code.duplicate().get(bytes);
+                in = new ByteArrayInputStream(bytes);
+            }
+        }
+        return in;
+    }
+
+    /**
+     * Returns the names of the classes this loader can define.
+     */
+    public Iterable<String> getClassNames() {
+        return Collections.unmodifiableSet(classes.keySet());
+    }
+
+    /**
+     * Drops this generation: classes not loaded yet can no longer be loaded
+     * and the class bytes are released.
+     */
+    @Override
+    public void close() {
+        classes = Collections.emptyMap();
+    }
+
+    private static Map<String, ByteBuffer> wrap(Map<String, byte[]> classes) {
+        Map<String, ByteBuffer> buffers = new HashMap<>();
+        for (Map.Entry<String, byte[]> c : classes.entrySet()) {
+            buffers.put(c.getKey(), ByteBuffer.wrap(c.getValue()));
+        }
+        return buffers;
+    }
+}
@@ -4,11 +4,19 @@ import javax.tools.*;
 import javax.tools.JavaFileObject.Kind;
 import java.io.*;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * JavaFileManager that keeps compiled .class bytes in memory.
@@ -19,62 +27,292 @@ import java.util.Map;
 public final class MemoryJavaFileManager extends ForwardingJavaFileManager {
 
     private List<String> includeDirs;
-    private Map<String, byte[]> classBytes;
+    private ClassOutputArena arena;
+    private Map<String, ByteBuffer> classBuffers;
+    // source file each output class was generated from, when javac tells
+    private Map<String, URI> classOrigins;
+    // previously compiled classes served as if they were on the classpath
+    private Map<String, byte[]> classInputs = Collections.emptyMap();
+    private CompileMetrics metrics;
+    // where generated classes go; classBuffers unless a caller sink is set
+    private ClassSink output;
+    // hash of each sourcepath file javac read, by path, when recording
+    private Map<String, String> sourceReads;
 
     public MemoryJavaFileManager(JavaFileManager fileManager, List<String> includeDirs) {
         super(fileManager);
         this.includeDirs = includeDirs;
-        classBytes = new HashMap<String, byte[]>();
+        arena = new ClassOutputArena();
+        classBuffers = new HashMap<String, ByteBuffer>();
+        classOrigins = new HashMap<String, URI>();
+        setClassSink(null);
     }
 
-    static JavaFileObject preprocessedFileObject(JavaFileObject fo, List<String> includeDirs)
+    static JavaFileObject preprocessedFileObject(JavaFileObject fo, List<String> includeDirs,
+                                                 CompileMetrics metrics)
             throws IOException {
         if (includeDirs != null) {
-            StringWriter out = new StringWriter();
-            PCPP pcpp = new PCPP(includeDirs, out);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(fo.openInputStream(), StandardCharsets.UTF_8));
-            pcpp.run(reader, fo.getName());
-            return new StringInputBuffer(fo.getName(), out.toString());
+            long start = System.nanoTime();
+            SourceBuffer code = PreprocessedSourceCache.shared().preprocess(fo, includeDirs);
+            if (metrics != null) {
+                metrics.addPreprocessNanos(fo.getName(), System.nanoTime() - start);
+            }
+            return new StringInputBuffer(fo.toUri(), code);
         } else {
             return fo;
         }
     }
 
-    static JavaFileObject makeStringSource(String name, String code, List<String> includeDirs) {
-        if (includeDirs != null) {
-            StringWriter out = new StringWriter();
-            PCPP pcpp = new PCPP(includeDirs, out);
+    /**
+     * Returns the compilation units preprocessed, in the same order. Each
+     * unit is preprocessed on the executor ahead of javac, and javac waits
+     * only for the unit it is reading, so it can parse the first units while
+     * later ones are still being preprocessed. A unit javac reaches before
+     * the executor does is preprocessed on javac's thread. A unit that fails
+     * to preprocess fails when javac reads it, which javac reports as an
+     * error for that file.
+     */
+    static List<JavaFileObject> preprocessedFileObjects(Iterable<? extends JavaFileObject> fos,
+                                                        List<String> includeDirs,
+                                                        CompileMetrics metrics, Executor executor) {
+        List<JavaFileObject> result = new ArrayList<JavaFileObject>();
+        if (includeDirs == null) {
+            for (JavaFileObject fo : fos) {
+                result.add(fo);
+            }
+            return result;
+        }
+        for (JavaFileObject fo : fos) {
+            result.add(new DeferredSource(fo, includeDirs, metrics));
+        }
+        // with a single processor javac would only compete with the workers
+        if (result.size() > 1 && Runtime.getRuntime().availableProcessors() > 1) {
+            try {
+                for (JavaFileObject fo : result) {
+                    final DeferredSource source = (DeferredSource) fo;
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            source.preprocess();
+                        }
+                    });
+                }
+            } catch (RejectedExecutionException exp) {
+                // the rest is preprocessed when javac reads it
+            }
+        }
+        return result;
+    }
+
+    static JavaFileObject makeStringSource(String name, String code, List<String> includeDirs,
+                                           CompileMetrics metrics) {
+        if (includeDirs != null && PCPP.hasDirectives(code)) {
+            long start = System.nanoTime();
+            SourceBuffer out = new SourceBuffer(code.length() + code.length() / 8);
+            PCPP pcpp = PCPP.acquire(includeDirs, out);
             try {
                 pcpp.run(new StringReader(code), name);
             } catch (IOException exp) {
                 throw new RuntimeException(exp);
+            } finally {
+                pcpp.release();
             }
-            return new StringInputBuffer(name, out.toString());
+            if (metrics != null) {
+                metrics.addPreprocessNanos(name, System.nanoTime() - start);
+            }
+            return new StringInputBuffer(name, out);
         } else {
             return new StringInputBuffer(name, code);
         }
     }
 
+    /**
+     * Returns the in-memory URI of a string source or of a class. Purely
+     * computed, so no file system probe is made per class. Sources read from
+     * files keep their own URI, which javac checks the class name against.
+     */
     static URI toURI(String name) {
-        File file = new File(name);
-        if (file.exists()) {
-            return file.toURI();
+        try {
+            return URI.create("mfm:///" + name);
+        } catch (Exception exp) {
+            return URI.create("mfm:///com/sun/script/java/java_source");
+        }
+    }
+
+    /**
+     * Returns a copy of the .class bytes of all compiled classes keyed by
+     * class name.
+     */
+    public Map<String, byte[]> getClassBytes() {
+        return toBytes(classBuffers);
+    }
+
+    /**
+     * Returns read-only views of the compiled classes keyed by class name,
+     * without copying them. The returned map is detached by close().
+     */
+    public Map<String, ByteBuffer> getClassBuffers() {
+        return classBuffers;
+    }
+
+    static Map<String, byte[]> toBytes(Map<String, ByteBuffer> buffers) {
+        Map<String, byte[]> result = new HashMap<String, byte[]>();
+        for (Map.Entry<String, ByteBuffer> c : buffers.entrySet()) {
+            ByteBuffer view = c.getValue().duplicate();
+            byte[] code = new byte[view.remaining()];
+            view.get(code);
+            result.put(c.getKey(), code);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the URI of the source each output class was generated from.
+     * Like {@link #getClassBuffers()} the returned map is detached by close().
+     */
+    Map<String, URI> getClassOrigins() {
+        return classOrigins;
+    }
+
+    /**
+     * Makes the given compiled classes visible to javac on the class path,
+     * so that only part of a set of sources needs to be recompiled.
+     */
+    void setClassInputs(Map<String, byte[]> classInputs) {
+        this.classInputs = classInputs;
+    }
+
+    /**
+     * Hands each class to the given sink as soon as it is generated instead
+     * of keeping it for {@link #getClassBuffers()}. Pass null to keep the
+     * classes again.
+     */
+    void setClassSink(ClassSink sink) {
+        if (sink != null) {
+            output = sink;
         } else {
-            try {
-                return URI.create("mfm:///" + name);
-            } catch (Exception exp) {
-                return URI.create("mfm:///com/sun/script/java/java_source");
+            output = new ClassSink() {
+                @Override
+                public void classGenerated(String className, ByteBuffer code) {
+                    classBuffers.put(className, code);
+                }
+            };
+        }
+    }
+
+    /**
+     * Records what each source javac reads from the sourcepath hashed to,
+     * keyed by path, so a cached result can later be checked against the
+     * files it was compiled from. Pass null to stop recording.
+     */
+    void setSourceReads(Map<String, String> sourceReads) {
+        this.sourceReads = sourceReads;
+    }
+
+    /**
+     * Returns the hash a sourcepath file reads as now, as recorded by
+     * {@link #setSourceReads}, or null if it cannot be read or preprocessed.
+     */
+    static String sourceHash(StandardJavaFileManager stdManager, File file, List<String> includeDirs) {
+        try {
+            if (includeDirs == null) {
+                return hash(Files.readAllBytes(file.toPath()));
             }
+            JavaFileObject fo = stdManager.getJavaFileObjects(file).iterator().next();
+            return hash(PreprocessedSourceCache.shared().preprocess(fo, includeDirs));
+        } catch (IOException | RuntimeException exp) {
+            return null;
         }
     }
 
-    public Map<String, byte[]> getClassBytes() {
-        return classBytes;
+    private static String hash(byte[] bytes) {
+        MessageDigest md = CompilationCache.newDigest();
+        md.update(bytes);
+        return CompilationCache.toHex(md.digest());
+    }
+
+    private static String hash(CharSequence code) {
+        MessageDigest md = CompilationCache.newDigest();
+        CompilationCache.update(md, code);
+        return CompilationCache.toHex(md.digest());
+    }
+
+    /**
+     * Notes that javac read a sourcepath file, as the given PCPP output or,
+     * if that is null, as the file is.
+     */
+    private static void recordRead(Map<String, String> sourceReads, JavaFileObject fo, CharSequence code)
+            throws IOException {
+        URI uri = fo.toUri();
+        if (sourceReads == null || !"file".equals(uri.getScheme())) {
+            return;
+        }
+        File file = new File(uri);
+        String hash = code != null ? hash(code) : hash(Files.readAllBytes(file.toPath()));
+        synchronized (sourceReads) {
+            sourceReads.put(file.getPath(), hash);
+        }
+    }
+
+    /**
+     * Sets where the preprocessing of implicitly compiled sources is recorded.
+     */
+    void setMetrics(CompileMetrics metrics) {
+        this.metrics = metrics;
     }
 
     @Override
     public void close() throws IOException {
-        classBytes = new HashMap<String, byte[]>();
+        arena = new ClassOutputArena();
+        classBuffers = new HashMap<String, ByteBuffer>();
+        classOrigins = new HashMap<String, URI>();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Iterable<JavaFileObject> list(JavaFileManager.Location location,
+                                         String packageName,
+                                         Set kinds,
+                                         boolean recurse) throws IOException {
+        Iterable<JavaFileObject> listed = super.list(location, packageName, kinds, recurse);
+        if ((includeDirs != null || sourceReads != null) &&
+                location == StandardLocation.SOURCE_PATH && kinds.contains(Kind.SOURCE)) {
+            // implicitly compiled sources need preprocessing too
+            List<JavaFileObject> result = new ArrayList<JavaFileObject>();
+            for (JavaFileObject fo : listed) {
+                result.add(fo.getKind() == Kind.SOURCE
+                        ? new PreprocessedSource(fo, includeDirs, metrics, sourceReads) : fo);
+            }
+            return result;
+        }
+        if (classInputs.isEmpty() || location != StandardLocation.CLASS_PATH || !kinds.contains(Kind.CLASS)) {
+            return listed;
+        }
+        List<JavaFileObject> result = new ArrayList<JavaFileObject>();
+        for (JavaFileObject fo : listed) {
+            result.add(fo);
+        }
+        for (Map.Entry<String, byte[]> c : classInputs.entrySet()) {
+            String name = c.getKey();
+            int index = name.lastIndexOf('.');
+            String pkg = index == -1 ? "" : name.substring(0, index);
+            if (pkg.equals(packageName) ||
+                    (recurse && (packageName.isEmpty() || pkg.startsWith(packageName + ".")))) {
+                result.add(new ClassInputBuffer(name, c.getValue()));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String inferBinaryName(JavaFileManager.Location location, JavaFileObject file) {
+        if (file instanceof ClassInputBuffer) {
+            return ((ClassInputBuffer) file).name;
+        }
+        if (file instanceof PreprocessedSource) {
+            return super.inferBinaryName(location, ((PreprocessedSource) file).source());
+        }
+        return super.inferBinaryName(location, file);
     }
 
     @Override
@@ -87,6 +325,9 @@ public final class MemoryJavaFileManager extends ForwardingJavaFileManager {
                                                Kind kind,
                                                FileObject sibling) throws IOException {
         if (kind == Kind.CLASS) {
+            if (sibling != null) {
+                classOrigins.put(className, sibling.toUri());
+            }
             return new ClassOutputBuffer(className);
         } else {
             return super.getJavaFileForOutput(location, className, kind, sibling);
@@ -98,38 +339,218 @@ public final class MemoryJavaFileManager extends ForwardingJavaFileManager {
                                               String className,
                                               Kind kind)
             throws IOException {
+        if (kind == Kind.CLASS && location == StandardLocation.CLASS_PATH && classInputs.containsKey(className)) {
+            return new ClassInputBuffer(className, classInputs.get(className));
+        }
         JavaFileObject result = super.getJavaFileForInput(location, className, kind);
         if (kind == Kind.SOURCE) {
-            return preprocessedFileObject(result, includeDirs);
+            JavaFileObject source = preprocessedFileObject(result, includeDirs, metrics);
+            if (location == StandardLocation.SOURCE_PATH && result != null) {
+                recordRead(sourceReads, result,
+                        source instanceof StringInputBuffer ? ((StringInputBuffer) source).code : null);
+            }
+            return source;
         } else {
             return result;
         }
     }
 
     /**
-     * A file object used to represent Java source coming from a string.
+     * A file object used to represent Java source coming from a string or
+     * from PCPP output.
      */
     private static class StringInputBuffer extends SimpleJavaFileObject {
 
-        final String code;
+        final CharSequence code;
+
+        StringInputBuffer(String name, CharSequence code) {
+            this(toURI(name), code);
+        }
 
-        StringInputBuffer(String name, String code) {
-            super(toURI(name), Kind.SOURCE);
+        /**
+         * Keeps the URI of the file the code was preprocessed from.
+         */
+        StringInputBuffer(URI uri, CharSequence code) {
+            super(uri, Kind.SOURCE);
             this.code = code;
         }
 
         @Override
         public CharBuffer getCharContent(boolean ignoreEncodingErrors) {
-            return CharBuffer.wrap(code);
+            return code instanceof SourceBuffer ? ((SourceBuffer) code).toCharBuffer() : CharBuffer.wrap(code);
+        }
+
+        @Override
+        public Reader openReader(boolean ignoreEncodingErrors) {
+            return code instanceof SourceBuffer ? ((SourceBuffer) code).openReader()
+                    : new StringReader(code.toString());
+        }
+    }
+
+    /**
+     * A compilation unit whose preprocessing may run on another thread,
+     * named like the {@link StringInputBuffer} it replaces.
+     */
+    private static class DeferredSource extends SimpleJavaFileObject {
+
+        private final JavaFileObject source;
+        private final List<String> includeDirs;
+        private final CompileMetrics metrics;
+        private SourceBuffer code;
+        private IOException failure;
+
+        DeferredSource(JavaFileObject source, List<String> includeDirs, CompileMetrics metrics) {
+            super(source.toUri(), Kind.SOURCE);
+            this.source = source;
+            this.includeDirs = includeDirs;
+            this.metrics = metrics;
+        }
+
+        /**
+         * Preprocesses ahead of javac; a failure is kept for javac to see.
+         */
+        void preprocess() {
+            try {
+                code();
+            } catch (IOException exp) {
+                // thrown again to javac
+            }
+        }
+
+        private synchronized SourceBuffer code() throws IOException {
+            if (code == null && failure == null) {
+                long start = System.nanoTime();
+                long allocated = metrics != null ? CompileMetrics.threadAllocatedBytes() : -1;
+                try {
+                    code = PreprocessedSourceCache.shared().preprocess(source, includeDirs);
+                } catch (IOException exp) {
+                    failure = exp;
+                } catch (RuntimeException exp) {
+                    // PCPP reports bad directives this way
+                    failure = new IOException(exp.getMessage(), exp);
+                }
+                if (metrics != null) {
+                    metrics.addPreprocessNanos(source.getName(), System.nanoTime() - start);
+                    metrics.addAllocatedBytes(allocated);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return code;
+        }
+
+        @Override
+        public CharBuffer getCharContent(boolean ignoreEncodingErrors) throws IOException {
+            return code().toCharBuffer();
+        }
+
+        @Override
+        public Reader openReader(boolean ignoreEncodingErrors) throws IOException {
+            return code().openReader();
+        }
+    }
+
+    /**
+     * A source found on the sourcepath, preprocessed when javac first reads
+     * it rather than when it is listed. Without include dirs it is read as
+     * is and only noted as read.
+     */
+    private static class PreprocessedSource extends ForwardingJavaFileObject<JavaFileObject> {
+
+        private final List<String> includeDirs;
+        private final CompileMetrics metrics;
+        private final Map<String, String> sourceReads;
+        private SourceBuffer code;
+        private boolean read;
+
+        PreprocessedSource(JavaFileObject source, List<String> includeDirs, CompileMetrics metrics,
+                           Map<String, String> sourceReads) {
+            super(source);
+            this.includeDirs = includeDirs;
+            this.metrics = metrics;
+            this.sourceReads = sourceReads;
+        }
+
+        JavaFileObject source() {
+            return fileObject;
+        }
+
+        private synchronized SourceBuffer code() throws IOException {
+            if (code == null) {
+                long start = System.nanoTime();
+                code = PreprocessedSourceCache.shared().preprocess(fileObject, includeDirs);
+                if (metrics != null) {
+                    metrics.addPreprocessNanos(fileObject.getName(), System.nanoTime() - start);
+                }
+                recordRead(sourceReads, fileObject, code);
+            }
+            return code;
+        }
+
+        private synchronized void unprocessedRead() throws IOException {
+            if (!read) {
+                read = true;
+                recordRead(sourceReads, fileObject, null);
+            }
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+            if (includeDirs == null) {
+                unprocessedRead();
+                return fileObject.getCharContent(ignoreEncodingErrors);
+            }
+            return code().toCharBuffer();
+        }
+
+        @Override
+        public Reader openReader(boolean ignoreEncodingErrors) throws IOException {
+            if (includeDirs == null) {
+                unprocessedRead();
+                return fileObject.openReader(ignoreEncodingErrors);
+            }
+            return code().openReader();
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            if (includeDirs == null) {
+                unprocessedRead();
+                return fileObject.openInputStream();
+            }
+            return new ByteArrayInputStream(code().toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * A file object that serves previously compiled bytecode as class input.
+     */
+    private static class ClassInputBuffer extends SimpleJavaFileObject {
+
+        private final String name;
+        private final byte[] code;
+
+        ClassInputBuffer(String name, byte[] code) {
+            super(toURI(name.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+            this.name = name;
+            this.code = code;
+        }
+
+        @Override
+        public InputStream openInputStream() {
+            return new ByteArrayInputStream(code);
         }
 
-        public Reader openReader() {
-            return new StringReader(code);
+        @Override
+        public long getLastModified() {
+            // always newer than any source on the sourcepath
+            return Long.MAX_VALUE;
         }
     }
 
     /**
-     * A file object that stores Java bytecode into the classBytes map.
+     * A file object that stores Java bytecode into the classBuffers map.
      */
     private class ClassOutputBuffer extends SimpleJavaFileObject {
 
@@ -142,15 +563,7 @@ public final class MemoryJavaFileManager extends ForwardingJavaFileManager {
 
         @Override
         public OutputStream openOutputStream() {
-            return new FilterOutputStream(new ByteArrayOutputStream()) {
-
-                @Override
-                public void close() throws IOException {
-                    out.close();
-                    ByteArrayOutputStream bos = (ByteArrayOutputStream) out;
-                    classBytes.put(name, bos.toByteArray());
-                }
-            };
+            return arena.open(name, output);
         }
     }
 }
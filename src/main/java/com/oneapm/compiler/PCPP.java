@@ -17,6 +17,8 @@ import java.util.*;
  * * Commented out printing of line directives.
  * * Print space char in output only for word tokens. This way multicharacter
  * operators such as ==, != etc. are property printed.
+ * * Replaced StreamTokenizer with PCPPLexer. Source text outside directives
+ * is now copied as is, comments and white space included.
  */
 public class PCPP {
 
@@ -28,13 +30,45 @@ public class PCPP {
      * contain either macro definitions or expressions) are currently
      * not handled.
      */
-    private Map/*<String, String>*/ defineMap = new HashMap();
-    private Set/*<String>*/ nonConstantDefines = new HashSet();
+    private Map<String, String> defineMap = new HashMap<String, String>();
+    private Set<String> nonConstantDefines = new HashSet<String>();
     /**
      * List containing the #include paths as Strings
      */
     private List/*<String>*/ includePaths;
+    /**
+     * #include names seen in active blocks, mapped to the file each was
+     * found in (null if not found).
+     */
+    private Map<String, String> includes = new LinkedHashMap<>();
+    /**
+     * Modification time and length of each included file, taken when it
+     * was first opened.
+     */
+    private Map<String, long[]> includeStamps = new HashMap<>();
+    /**
+     * Headers being processed for the first time, innermost last, whose
+     * effect is recorded for the precompiled header cache.
+     */
+    private List<HeaderRecording> recordings = new ArrayList<>();
+    /**
+     * Included files found to be wrapped in an include guard, mapped to the
+     * guard macro. While the macro is defined such a file is not read again.
+     */
+    private Map<String, String> guards = new HashMap<>();
     private ParseState state;
+    /**
+     * One bit per hash of the defined names, so that most words in the
+     * source are known not to be macros without making a string of them.
+     */
+    private final long[] macroFilter = new long[16];
+    private boolean macroFilterDirty = true;
+
+    /**
+     * One reusable instance per thread, see {@link #acquire}.
+     */
+    private static final ThreadLocal<PCPP> pooled = new ThreadLocal<>();
+    private boolean inUse;
 
     public PCPP(List/*<String>*/ includePaths) {
         this.includePaths = includePaths;
@@ -46,6 +80,49 @@ public class PCPP {
         printer = new Printer(out);
     }
 
+    PCPP(List/*<String>*/ includePaths, SourceBuffer out) {
+        this.includePaths = includePaths;
+        printer = new Printer(out);
+    }
+
+    /**
+     * Returns a PCPP writing to out, reusing the calling thread's instance
+     * and its maps when it is not in use. Pair with {@link #release}.
+     */
+    static PCPP acquire(List/*<String>*/ includePaths, SourceBuffer out) {
+        PCPP pcpp = pooled.get();
+        if (pcpp == null || pcpp.inUse) {
+            pcpp = new PCPP(includePaths, out);
+            if (pooled.get() == null) {
+                pooled.set(pcpp);
+            }
+        } else {
+            pcpp.includePaths = includePaths;
+            pcpp.printer.reset(out);
+        }
+        pcpp.inUse = true;
+        return pcpp;
+    }
+
+    /**
+     * Forgets everything about the last run, so that the instance can be
+     * acquired again. Results such as {@link #getIncludes} must be read
+     * before.
+     */
+    void release() {
+        defineMap.clear();
+        nonConstantDefines.clear();
+        includes.clear();
+        includeStamps.clear();
+        recordings.clear();
+        guards.clear();
+        state = null;
+        macroFilterDirty = true;
+        includePaths = null;
+        printer.reset(null);
+        inUse = false;
+    }
+
     @SuppressWarnings("DefaultCharset")
     public static void main(String[] args) {
         try {
@@ -99,28 +176,11 @@ public class PCPP {
     }
 
     public void run(Reader reader, String filename) throws IOException {
-        StreamTokenizer tok = null;
-        BufferedReader bufReader = null;
-        if (reader instanceof BufferedReader) {
-            bufReader = (BufferedReader) reader;
-        } else {
-            bufReader = new BufferedReader(reader);
-        }
-        tok = new StreamTokenizer(new ConcatenatingReader(bufReader));
-        tok.resetSyntax();
-        tok.wordChars('a', 'z');
-        tok.wordChars('A', 'Z');
-        tok.wordChars('0', '9');
-        tok.wordChars('_', '_');
-        tok.wordChars('.', '.');
-        tok.wordChars(128 + 32, 255);
-        tok.whitespaceChars(0, ' ');
-        tok.quoteChar('"');
-        tok.quoteChar('\'');
-        tok.eolIsSignificant(true);
-        tok.slashSlashComments(true);
-        tok.slashStarComments(true);
-        ParseState curState = new ParseState(tok, filename);
+        parseFile(reader, filename);
+    }
+
+    private ParseState parseFile(Reader reader, String filename) throws IOException {
+        ParseState curState = new ParseState(new PCPPLexer(reader), filename);
         ParseState oldState = state;
         state = curState;
         lineDirective();
@@ -129,24 +189,89 @@ public class PCPP {
         if (state != null) {
             lineDirective();
         }
+        return curState;
+    }
+
+    /**
+     * Tells whether the text needs preprocessing: it may contain a
+     * directive, a '#' with only blanks before it on its line, or it has a
+     * backslash ending a line, which PCPP joins with the next line. Any
+     * other text comes out of PCPP as it went in, since macros are only made
+     * by directives, so it need not be preprocessed at all.
+     */
+    static boolean hasDirectives(CharSequence text) {
+        int i = indexOf(text, '#', 0);
+        while (i >= 0) {
+            int j = i - 1;
+            while (j >= 0 && (text.charAt(j) == ' ' || text.charAt(j) == '\t' || text.charAt(j) == '\f')) {
+                j--;
+            }
+            if (j < 0 || text.charAt(j) == '\n' || text.charAt(j) == '\r') {
+                return true;
+            }
+            i = indexOf(text, '#', i + 1);
+        }
+        i = indexOf(text, '\\', 0);
+        while (i >= 0) {
+            if (i + 1 < text.length() && (text.charAt(i + 1) == '\n' || text.charAt(i + 1) == '\r')) {
+                return true;
+            }
+            i = indexOf(text, '\\', i + 1);
+        }
+        return false;
+    }
+
+    private static int indexOf(CharSequence text, char c, int from) {
+        // String.indexOf is a vectorized intrinsic
+        if (text instanceof String) {
+            return ((String) text).indexOf(c, from);
+        }
+        if (text instanceof SourceBuffer) {
+            return ((SourceBuffer) text).indexOf(c, from);
+        }
+        for (int i = from; i < text.length(); i++) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     public String findFile(String filename) {
+        return findFile(includePaths, filename);
+    }
+
+    static String findFile(List/*<String>*/ includePaths, String filename) {
         String sep = File.separator;
+        IncludePathIndex index = IncludePathIndex.shared();
         for (Iterator iter = includePaths.iterator(); iter.hasNext(); ) {
             String inclPath = (String) iter.next();
-            String fullPath = inclPath + sep + filename;
-            File file = new File(fullPath);
-            if (file.exists()) {
-                return fullPath;
+            if (index.exists(inclPath, filename)) {
+                return inclPath + sep + filename;
             }
         }
         return null;
     }
 
+    /**
+     * Returns the #include names processed so far, mapped to the file each
+     * was found in or to null.
+     */
+    Map<String, String> getIncludes() {
+        return includes;
+    }
+
+    /**
+     * Returns the modification time and length of each file included so
+     * far, as they were when the file was read.
+     */
+    Map<String, long[]> getIncludeStamps() {
+        return includeStamps;
+    }
+
     // Accessors
     private void pushBackToken() throws IOException {
-        state.tok().pushBack();
+        state.lexer().pushBack();
     }
 
     /**
@@ -157,31 +282,13 @@ public class PCPP {
     }
 
     private int nextToken(boolean returnEOLs) throws IOException {
-        int lineno = lineNumber();
-        // Check to see whether the previous call to nextToken() left an
-        // EOL on the stream
-        if (curToken() == StreamTokenizer.TT_EOL) {
-            state.setStartOfLine(true);
-        } else if (!state.startOfFile()) {
-            state.setStartOfLine(false);
-        }
-        state.setStartOfFile(false);
-        int val = state.tok().nextToken();
+        int val = state.lexer().nextToken();
         if (!returnEOLs) {
-            if (val == StreamTokenizer.TT_EOL) {
-                do {
-                    // Consume and return next token, setting state appropriately
-                    val = state.tok().nextToken();
-                    state.setStartOfLine(true);
-                    printer.println();
-                } while (val == StreamTokenizer.TT_EOL);
+            while (val == PCPPLexer.TT_EOL) {
+                printer.println();
+                val = state.lexer().nextToken();
             }
         }
-        if (lineNumber() > lineno + 1) {
-            // This is a little noisier than it needs to be, but does handle
-            // the case of multi-line comments properly
-            lineDirective();
-        }
         return val;
     }
 
@@ -194,10 +301,10 @@ public class PCPP {
         if (nextTok != requiredToken) {
             String msg = "Expected token '" + requiredToken + "' but got ";
             switch (nextTok) {
-                case StreamTokenizer.TT_EOF:
+                case PCPPLexer.TT_EOF:
                     msg += "<EOF>";
                     break;
-                case StreamTokenizer.TT_EOL:
+                case PCPPLexer.TT_EOL:
                     msg += "<EOL>";
                     break;
                 default:
@@ -210,22 +317,22 @@ public class PCPP {
     }
 
     private int curToken() {
-        return state.tok().ttype;
+        return state.lexer().ttype();
     }
 
     private String curTokenAsString() {
         int t = curToken();
-        if (t == StreamTokenizer.TT_WORD) {
+        if (t == PCPPLexer.TT_WORD) {
             return curWord();
         }
-        if (t == StreamTokenizer.TT_EOL) {
+        if (t == PCPPLexer.TT_EOL) {
             throw new RuntimeException("Should not be converting EOL characters to strings");
         }
         char c = (char) t;
         if (c == '"' || c == '\'') {
             StringBuilder buf = new StringBuilder();
             buf.append(c);
-            buf.append(state.tok().sval);
+            buf.append(state.lexer().sval());
             buf.append(c);
             return buf.toString();
         }
@@ -234,7 +341,7 @@ public class PCPP {
 
     private String nextWord() throws IOException {
         int val = nextToken();
-        if (val != StreamTokenizer.TT_WORD) {
+        if (val != PCPPLexer.TT_WORD) {
             throw new RuntimeException("Expected word at file " + filename() +
                     ", line " + lineNumber());
         }
@@ -242,11 +349,7 @@ public class PCPP {
     }
 
     private String curWord() {
-        return state.tok().sval;
-    }
-
-    private boolean startOfLine() {
-        return state.startOfLine();
+        return state.lexer().sval();
     }
 
     private String filename() {
@@ -261,34 +364,55 @@ public class PCPP {
     // Parsing //
     /////////////
     private void parse() throws IOException {
-        int tok = 0;
-        while ((tok = nextToken()) != StreamTokenizer.TT_EOF) {
-            // A '#' at the beginning of a line is a preprocessor directive
-            if (startOfLine() && (tok == '#')) {
+        PCPPLexer lexer = state.lexer();
+        // Source text is copied as is, handling #defines (though not
+        // properly -- only handling #defines to constants and the empty
+        // string); a '#' at the beginning of a line is a preprocessor
+        // directive
+        boolean directive;
+        do {
+            directive = lexer.copyText(printer, this);
+            if (lexer.sawText()) {
+                state.guardToken(printer.enableDepth());
+            }
+            if (directive) {
                 preprocessorDirective();
-            } else {
-                // Output white space plus current token, handling #defines
-                // (though not properly -- only handling #defines to constants and the empty string)
-
-                // !!HACK!! - print space only for word tokens. This way multicharacter
-                // operators such as ==, != etc. are property printed.
-                if (tok == StreamTokenizer.TT_WORD) {
-                    printer.print(" ");
-                }
-                String s = curTokenAsString();
-                String newS = (String) defineMap.get(s);
-                if (newS == null) {
-                    newS = s;
+                if (lexer.endDirective()) {
+                    // keep the line count of the source
+                    printer.println();
                 }
-                printer.print(newS);
             }
-        }
+        } while (directive);
         printer.flush();
     }
 
+    /**
+     * Returns the value of the macro named by buf[start, end), or null.
+     * hash is the String hash code of the name.
+     */
+    String macro(char[] buf, int start, int end, int hash) {
+        if (defineMap.isEmpty()) {
+            return null;
+        }
+        if (macroFilterDirty) {
+            Arrays.fill(macroFilter, 0);
+            for (String name : defineMap.keySet()) {
+                int h = name.hashCode();
+                macroFilter[(h >>> 6) & (macroFilter.length - 1)] |= 1L << h;
+            }
+            macroFilterDirty = false;
+        }
+        if ((macroFilter[(hash >>> 6) & (macroFilter.length - 1)] & (1L << hash)) == 0) {
+            return null;
+        }
+        return defineMap.get(new String(buf, start, end - start));
+    }
+
     private void preprocessorDirective() throws IOException {
+        int depth = printer.enableDepth();
         String w = nextWord();
         boolean shouldPrint = true;
+        state.guardDirective(w, depth);
         switch (w) {
             case "define":
                 handleDefine();
@@ -305,7 +429,10 @@ public class PCPP {
                 break;
             case "ifdef":
             case "ifndef":
-                handleIfdef(w.equals("ifdef"));
+                String symbolName = handleIfdef(w.equals("ifdef"));
+                if (w.equals("ifndef")) {
+                    state.guardIfndef(symbolName, depth);
+                }
                 shouldPrint = false;
                 break;
             case "else":
@@ -341,12 +468,13 @@ public class PCPP {
 
         // there shouldn't be any extra symbols after the name, but just in case...
         List values = new ArrayList();
-        while (nextToken(true) != StreamTokenizer.TT_EOL) {
+        while (nextToken(true) != PCPPLexer.TT_EOL) {
             values.add(curTokenAsString());
         }
 
         if (printer.enabled()) {
-            String oldDef = (String) defineMap.remove(name);
+            macroFilterDirty = true;
+            String oldDef = defineMap.remove(name);
             if (oldDef == null) {
                 System.err.println("WARNING: ignoring redundant \"#undef " +
                         name + "\", at \"" + filename() + "\" line " + lineNumber() +
@@ -366,7 +494,7 @@ public class PCPP {
         //System.err.println("IN HANDLE_DEFINE: '" + name + "'  (line " + lineNumber() + " file " + filename() + ")");
         // (Note that this is not actually proper handling for multi-line #defines)
         List values = new ArrayList();
-        while (nextToken(true) != StreamTokenizer.TT_EOL) {
+        while (nextToken(true) != PCPPLexer.TT_EOL) {
             values.add(curTokenAsString());
         }
         // if we're not within an active block of code (like inside an "#ifdef
@@ -374,13 +502,14 @@ public class PCPP {
         // map.
         debugPrint(true, "#define " + name);
         if (printer.enabled()) {
+            macroFilterDirty = true;
             boolean emitDefine = true;
 
             // Handle #definitions to nothing or to a constant value
             int sz = values.size();
             if (sz == 0) {
                 // definition to nothing, like "#define FOO"
-                String oldDef = (String) defineMap.put(name, "");
+                String oldDef = defineMap.put(name, "");
                 if (oldDef != null) {
                     System.err.println("WARNING: \"" + name + "\" redefined from \"" +
                             oldDef + "\" to \"\"");
@@ -395,7 +524,7 @@ public class PCPP {
                 if (isConstant(value)) {
                     // Value is numeric constant like "#define FOO 5".
                     // Put it in the #define map
-                    String oldDef = (String) defineMap.put(name, value);
+                    String oldDef = defineMap.put(name, value);
                     if (oldDef != null) {
                         System.err.println("WARNING: \"" + name + "\" redefined from \"" +
                                 oldDef + "\" to \"" + value + "\"");
@@ -489,7 +618,7 @@ public class PCPP {
     }
 
     private String resolveDefine(String word, boolean returnNullIfNotFound) {
-        String lastWord = (String) defineMap.get(word);
+        String lastWord = defineMap.get(word);
         if (lastWord == null) {
             if (returnNullIfNotFound) {
                 return null;
@@ -498,7 +627,7 @@ public class PCPP {
         }
         String nextWord = null;
         do {
-            nextWord = (String) defineMap.get(lastWord);
+            nextWord = defineMap.get(lastWord);
             if (nextWord != null) {
                 lastWord = nextWord;
             }
@@ -509,14 +638,16 @@ public class PCPP {
     /**
      * @param isIfdef if true, we're processing #ifdef; if false, we're
      *                processing #ifndef.
+     * @return the symbol tested
      */
-    private void handleIfdef(boolean isIfdef) throws IOException {
+    private String handleIfdef(boolean isIfdef) throws IOException {
         // Next token is the name of the #ifdef
         String symbolName = nextWord();
         debugPrint(true, (isIfdef ? "#ifdef " : "#ifndef ") + symbolName);
         boolean symbolIsDefined = defineMap.get(symbolName) != null;
         //debugPrint(true, "HANDLE_IFDEF: ifdef(" + symbolName + ") = " + symbolIsDefined );
         printer.pushEnableBit(printer.enabled() && symbolIsDefined == isIfdef);
+        return symbolName;
     }
 
     ////////////////////////////////////////////////
@@ -579,7 +710,7 @@ public class PCPP {
         int tok;
         do {
             tok = nextToken(true);
-            //System.out.println("-- READ: [" + (tok == StreamTokenizer.TT_EOL ? "<EOL>" :curTokenAsString()) + "]");
+            //System.out.println("-- READ: [" + (tok == PCPPLexer.TT_EOL ? "<EOL>" :curTokenAsString()) + "]");
             switch (tok) {
                 case '(':
                     ++openParens;
@@ -631,7 +762,7 @@ public class PCPP {
                     ifValue = false;
                 }
                 break;
-                case StreamTokenizer.TT_WORD: {
+                case PCPPLexer.TT_WORD: {
                     String word = curTokenAsString();
                     if (word.equals("defined")) {
                         // Handle things like #if defined(SOMESYMBOL)
@@ -643,7 +774,7 @@ public class PCPP {
                         nextRequiredToken(')');
                     } else {
                         // Handle things like #if SOME_SYMBOL.
-                        String symbolValue = (String) defineMap.get(word);
+                        String symbolValue = defineMap.get(word);
 
                         // See if the statement is "true"; i.e., a non-zero expression
                         if (symbolValue != null) {
@@ -677,11 +808,11 @@ public class PCPP {
                     }
                 } // end case TT_WORD
                 break;
-                case StreamTokenizer.TT_EOL:
+                case PCPPLexer.TT_EOL:
                     //System.out.println("HANDLE_IF_RECURSIVE HIT <EOL>!");
                     pushBackToken(); // so caller hits EOL as well if we're recursing
                     break;
-                case StreamTokenizer.TT_EOF:
+                case PCPPLexer.TT_EOF:
                     throw new RuntimeException("Unexpected end of file while parsing " +
                             "#if statement at file " + filename() + ", line " + lineNumber());
 
@@ -690,8 +821,8 @@ public class PCPP {
                             ") while parsing " + "#if statement at file " + filename() +
                             ", line " + lineNumber());
             }
-            //System.out.println("END OF WHILE: greedy = " + greedy + " parens = " +openParens + " not EOL = " + (tok != StreamTokenizer.TT_EOL) + " --> " + ((greedy && openParens >= 0) && tok != StreamTokenizer.TT_EOL));
-        } while ((greedy && openParens >= 0) && tok != StreamTokenizer.TT_EOL);
+            //System.out.println("END OF WHILE: greedy = " + greedy + " parens = " +openParens + " not EOL = " + (tok != PCPPLexer.TT_EOL) + " --> " + ((greedy && openParens >= 0) && tok != PCPPLexer.TT_EOL));
+        } while ((greedy && openParens >= 0) && tok != PCPPLexer.TT_EOL);
         //System.out.println("OUT HANDLE_IF_RECURSIVE (" + tmp-- + ", returning " + ifValue + ")");
         //System.out.flush();
         return ifValue;
@@ -714,10 +845,10 @@ public class PCPP {
             // Components of path name are coming in as separate tokens;
             // concatenate them
             StringBuilder buf = new StringBuilder();
-            while ((t = nextToken()) != '>' && (t != StreamTokenizer.TT_EOF)) {
+            while ((t = nextToken()) != '>' && (t != PCPPLexer.TT_EOF)) {
                 buf.append(curTokenAsString());
             }
-            if (t == StreamTokenizer.TT_EOF) {
+            if (t == PCPPLexer.TT_EOF) {
                 System.err.println("WARNING: unexpected EOF while processing #include directive");
             }
             filename = buf.toString();
@@ -729,26 +860,129 @@ public class PCPP {
         if (printer.enabled()) {
             // Look up file in known #include path
             String fullname = findFile(filename);
+            includes.put(filename, fullname);
+            for (HeaderRecording recording : recordings) {
+                recording.includes.put(filename, fullname);
+            }
             //System.out.println("ACTIVE BLOCK, LOADING " + filename);
             if (fullname == null) {
                 System.err.println("WARNING: unable to find #include file \"" + filename + "\"");
                 return;
             }
-            // Process this file in-line
-            Reader reader = new BufferedReader(new FileReader(fullname));
-            run(reader, fullname);
+            includeFile(fullname);
         } else {
             //System.out.println("INACTIVE BLOCK, SKIPPING " + filename);
         }
     }
 
+    /**
+     * Processes an included file in-line, or replays it from the precompiled
+     * header cache.
+     */
+    private void includeFile(String fullname) throws IOException {
+        String guard = guards.get(fullname);
+        if (guard != null && defineMap.get(guard) != null) {
+            // everything in the file is inside #ifndef guard, so it would
+            // produce nothing; the skip still depends on the file
+            if (!recordings.isEmpty()) {
+                File file = new File(fullname);
+                long lastModified = file.lastModified();
+                long length = file.length();
+                for (HeaderRecording recording : recordings) {
+                    recording.addFile(fullname, lastModified, length);
+                }
+            }
+            return;
+        }
+
+        PrecompiledHeaderCache pch = PrecompiledHeaderCache.shared();
+        PrecompiledHeaderCache.Header header = pch.lookup(fullname, includePaths, defineMap, nonConstantDefines);
+        if (header != null) {
+            printer.print(header.output);
+            header.applyTo(defineMap, nonConstantDefines);
+            macroFilterDirty = true;
+            includes.putAll(header.includes);
+            guards.putAll(header.guards);
+            for (int i = 0; i < header.files.length; i++) {
+                addStamps(header.files[i], header.stamps[2 * i], header.stamps[2 * i + 1]);
+            }
+            for (HeaderRecording recording : recordings) {
+                recording.includes.putAll(header.includes);
+                recording.guards.putAll(header.guards);
+                for (int i = 0; i < header.files.length; i++) {
+                    recording.addFile(header.files[i], header.stamps[2 * i], header.stamps[2 * i + 1]);
+                }
+            }
+            return;
+        }
+
+        File file = new File(fullname);
+        long lastModified = file.lastModified();
+        long length = file.length();
+        addStamps(fullname, lastModified, length);
+        for (HeaderRecording recording : recordings) {
+            recording.addFile(fullname, lastModified, length);
+        }
+        HeaderRecording recording = new HeaderRecording(defineMap, nonConstantDefines);
+        recording.addFile(fullname, lastModified, length);
+        recordings.add(recording);
+        int depth = printer.enableDepth();
+        printer.startCapture();
+        boolean complete = false;
+        try (Reader reader = new BufferedReader(new FileReader(fullname))) {
+            guard = parseFile(reader, fullname).guard();
+            if (guard != null) {
+                guards.put(fullname, guard);
+                for (HeaderRecording r : recordings) {
+                    r.guards.put(fullname, guard);
+                }
+            }
+            complete = true;
+        } finally {
+            String output = printer.endCapture();
+            recordings.remove(recordings.size() - 1);
+            // a header with unbalanced #if/#endif depends on where it is included
+            if (complete && printer.enableDepth() == depth) {
+                pch.store(fullname, includePaths, recording.definesBefore, recording.nonConstantBefore,
+                        recording.files, recording.stamps, recording.includes, recording.guards,
+                        output, defineMap, nonConstantDefines);
+            }
+        }
+    }
+
+    private void addStamps(String path, long lastModified, long length) {
+        if (!includeStamps.containsKey(path)) {
+            includeStamps.put(path, new long[]{lastModified, length});
+        }
+    }
+
+    private static final class HeaderRecording {
+        final Map<String, String> definesBefore;
+        final Set<String> nonConstantBefore;
+        final List<String> files = new ArrayList<>();
+        final List<Long> stamps = new ArrayList<>();
+        final Map<String, String> includes = new LinkedHashMap<>();
+        final Map<String, String> guards = new HashMap<>();
+
+        HeaderRecording(Map<String, String> defines, Set<String> nonConstantDefines) {
+            definesBefore = new HashMap<String, String>(defines);
+            nonConstantBefore = new HashSet<String>(nonConstantDefines);
+        }
+
+        void addFile(String path, long lastModified, long length) {
+            files.add(path);
+            stamps.add(lastModified);
+            stamps.add(length);
+        }
+    }
+
     private void debugPrint(boolean onlyPrintIfEnabled, String msg) {
         if (disableDebugPrint) {
             return;
         }
 
         if (!onlyPrintIfEnabled || (onlyPrintIfEnabled && printer.enabled())) {
-            for (int i = Printer.debugPrintIndentLevel; --i > 0; ) {
+            for (int i = printer.getDebugPrintIndentLevel(); --i > 0; ) {
                 System.out.print("  ");
             }
             System.out.println(msg + "  (line " + lineNumber() + " file " + filename() + ")");
@@ -771,24 +1005,22 @@ public class PCPP {
     // State
     static class ParseState {
 
-        private StreamTokenizer tok;
+        private PCPPLexer lexer;
         private String filename;
-        // We do not generate #line directives
-        // private int lineNumber;
-        private boolean startOfLine;
-        private boolean startOfFile;
-
-        ParseState(StreamTokenizer tok, String filename) {
-            this.tok = tok;
+        // Include guard detection: the file is guarded if its first token
+        // starts "#ifndef X" and the matching #endif is its last token.
+        private String guard;
+        private int guardDepth = -1;
+        private boolean guardClosed;
+        private boolean unguarded;
+
+        ParseState(PCPPLexer lexer, String filename) {
+            this.lexer = lexer;
             this.filename = filename;
-            // We do not generate #line directives
-            // lineNumber = 1;
-            startOfLine = true;
-            startOfFile = true;
         }
 
-        StreamTokenizer tok() {
-            return tok;
+        PCPPLexer lexer() {
+            return lexer;
         }
 
         String filename() {
@@ -796,23 +1028,54 @@ public class PCPP {
         }
 
         int lineNumber() {
-            return tok.lineno();
+            return lexer.lineno();
         }
 
-        boolean startOfLine() {
-            return startOfLine;
+        /**
+         * Notes a token outside directives; depth is the #if nesting.
+         */
+        void guardToken(int depth) {
+            if (guard == null || guardClosed || depth <= guardDepth) {
+                unguarded = true;
+            }
         }
 
-        void setStartOfLine(boolean val) {
-            startOfLine = val;
+        /**
+         * Notes a directive; depth is the #if nesting before it.
+         */
+        void guardDirective(String directive, int depth) {
+            if (unguarded) {
+                return;
+            }
+            if (guard == null && directive.equals("ifndef")) {
+                // may open the guard, see guardIfndef
+                return;
+            }
+            if (guard != null && !guardClosed && depth == guardDepth + 1) {
+                if (directive.equals("endif")) {
+                    guardClosed = true;
+                    return;
+                }
+                if (directive.equals("else") || directive.equals("elif")) {
+                    unguarded = true;
+                    return;
+                }
+            }
+            guardToken(depth);
         }
 
-        boolean startOfFile() {
-            return startOfFile;
+        void guardIfndef(String symbol, int depth) {
+            if (!unguarded && guard == null) {
+                guard = symbol;
+                guardDepth = depth;
+            }
         }
 
-        void setStartOfFile(boolean val) {
-            startOfFile = val;
+        /**
+         * Returns the include guard macro of the file, or null.
+         */
+        String guard() {
+            return unguarded || !guardClosed ? null : guard;
         }
     }
 }
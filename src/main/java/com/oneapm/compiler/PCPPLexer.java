@@ -0,0 +1,331 @@
+package com.oneapm.compiler;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * The lexer of {@link PCPP}. It works over the characters of the whole
+ * file and has two modes. Plain source text is copied to the output in
+ * bulk, up to the next line starting with '#'; only words that may be
+ * macros are looked at. Directive lines are read token by token, with
+ * token types as in {@link java.io.StreamTokenizer}, and strings are only
+ * made for the tokens asked for.
+ * <p>
+ * A backslash at the end of a line joins it with the next one, in both
+ * modes.
+ */
+final class PCPPLexer {
+
+    static final int TT_EOF = -1;
+    static final int TT_EOL = '\n';
+    static final int TT_WORD = -3;
+
+    private static final int NORMAL = 0;
+    private static final int BLOCK_COMMENT = 1;
+    private static final int LINE_COMMENT = 2;
+    private static final int QUOTED = 3;
+
+    private final char[] buf;
+    private final int end;
+    private int pos;
+    private int line = 1;
+    private boolean lineStart = true;
+    // text mode state carried over directives
+    private int textState = NORMAL;
+    private char quote;
+    private boolean sawText;
+
+    // current token
+    private int ttype = TT_EOL;
+    private int tokenStart;
+    private int tokenEnd;
+    private int tokenLine;
+    private boolean spliced;
+    private boolean pushedBack;
+
+    PCPPLexer(Reader reader) throws IOException {
+        char[] chars = new char[8192];
+        int length = 0;
+        int n;
+        while ((n = reader.read(chars, length, chars.length - length)) != -1) {
+            length += n;
+            if (length == chars.length) {
+                chars = Arrays.copyOf(chars, chars.length * 2);
+            }
+        }
+        this.buf = chars;
+        this.end = length;
+    }
+
+    int lineno() {
+        return line;
+    }
+
+    //////////
+    // Text //
+    //////////
+
+    /**
+     * Copies source text to the printer, replacing macros, until the next
+     * directive or the end of the file.
+     *
+     * @return true if stopped after the '#' of a directive, false at the
+     * end of the file
+     */
+    boolean copyText(Printer printer, PCPP macros) {
+        sawText = false;
+        boolean enabled = printer.enabled();
+        int run = pos;
+        while (pos < end) {
+            if (lineStart && textState == NORMAL) {
+                lineStart = false;
+                int p = pos;
+                while (p < end && (buf[p] == ' ' || buf[p] == '\t' || buf[p] == '\f')) {
+                    p++;
+                }
+                if (p < end && buf[p] == '#') {
+                    flush(printer, run, p);
+                    pos = p + 1;
+                    return true;
+                }
+            }
+            char c = buf[pos];
+            int newline = newlineLength(pos + 1);
+            if (c == '\\' && newline > 0) {
+                flush(printer, run, pos);
+                pos += 1 + newline;
+                run = pos;
+                line++;
+                continue;
+            }
+            newline = newlineLength(pos);
+            if (newline > 0) {
+                pos += newline;
+                line++;
+                lineStart = true;
+                if (textState != BLOCK_COMMENT) {
+                    textState = NORMAL;
+                }
+                continue;
+            }
+            switch (textState) {
+                case BLOCK_COMMENT:
+                    if (c == '*' && pos + 1 < end && buf[pos + 1] == '/') {
+                        textState = NORMAL;
+                        pos++;
+                    }
+                    pos++;
+                    break;
+                case LINE_COMMENT:
+                    pos++;
+                    break;
+                case QUOTED:
+                    if (c == '\\') {
+                        pos++;
+                    } else if (c == quote) {
+                        textState = NORMAL;
+                    }
+                    pos++;
+                    break;
+                default:
+                    if (isWordChar(c)) {
+                        sawText = true;
+                        int start = pos;
+                        int hash = 0;
+                        do {
+                            hash = 31 * hash + buf[pos];
+                            pos++;
+                        } while (pos < end && isWordChar(buf[pos]));
+                        if (enabled) {
+                            String value = macros.macro(buf, start, pos, hash);
+                            if (value != null) {
+                                flush(printer, run, start);
+                                printer.print(value);
+                                run = pos;
+                            }
+                        }
+                    } else if (c == '/' && pos + 1 < end && buf[pos + 1] == '*') {
+                        textState = BLOCK_COMMENT;
+                        pos += 2;
+                    } else if (c == '/' && pos + 1 < end && buf[pos + 1] == '/') {
+                        textState = LINE_COMMENT;
+                        pos += 2;
+                    } else {
+                        if (c > ' ') {
+                            sawText = true;
+                        }
+                        if (c == '"' || c == '\'') {
+                            textState = QUOTED;
+                            quote = c;
+                        }
+                        pos++;
+                    }
+                    break;
+            }
+        }
+        flush(printer, run, pos);
+        return false;
+    }
+
+    /**
+     * Tells whether the last {@link #copyText} met anything besides white
+     * space and comments.
+     */
+    boolean sawText() {
+        return sawText;
+    }
+
+    /**
+     * Tells whether the directive just handled read up to the end of its
+     * line. Undoes a pushed back token, so that it is read as text.
+     */
+    boolean endDirective() {
+        if (pushedBack) {
+            pushedBack = false;
+            pos = tokenStart;
+            line = tokenLine;
+            lineStart = false;
+        }
+        return lineStart;
+    }
+
+    private void flush(Printer printer, int from, int to) {
+        if (to > from) {
+            printer.print(buf, from, to - from);
+        }
+    }
+
+    ////////////////////
+    // Directive mode //
+    ////////////////////
+
+    int ttype() {
+        return ttype;
+    }
+
+    void pushBack() {
+        if (ttype != TT_EOF) {
+            pushedBack = true;
+        }
+    }
+
+    int nextToken() {
+        if (pushedBack) {
+            pushedBack = false;
+            return ttype;
+        }
+        spliced = false;
+        while (pos < end) {
+            char c = buf[pos];
+            int newline = newlineLength(pos);
+            if (newline > 0) {
+                tokenStart = pos;
+                tokenLine = line;
+                pos += newline;
+                line++;
+                lineStart = true;
+                return ttype = TT_EOL;
+            }
+            if (c == '\\' && newlineLength(pos + 1) > 0) {
+                pos += 1 + newlineLength(pos + 1);
+                line++;
+            } else if (c <= ' ') {
+                pos++;
+            } else if (c == '/' && pos + 1 < end && buf[pos + 1] == '*') {
+                pos += 2;
+                while (pos < end && !(buf[pos] == '*' && pos + 1 < end && buf[pos + 1] == '/')) {
+                    if (buf[pos] == '\n' || (buf[pos] == '\r' && newlineLength(pos) == 1)) {
+                        line++;
+                    }
+                    pos++;
+                }
+                pos = Math.min(pos + 2, end);
+            } else if (c == '/' && pos + 1 < end && buf[pos + 1] == '/') {
+                while (pos < end && newlineLength(pos) == 0) {
+                    pos++;
+                }
+            } else {
+                break;
+            }
+        }
+        tokenStart = pos;
+        tokenLine = line;
+        lineStart = false;
+        if (pos >= end) {
+            tokenEnd = pos;
+            return ttype = TT_EOF;
+        }
+        char c = buf[pos];
+        if (isWordChar(c)) {
+            while (pos < end) {
+                if (isWordChar(buf[pos])) {
+                    pos++;
+                } else if (buf[pos] == '\\' && newlineLength(pos + 1) > 0) {
+                    pos += 1 + newlineLength(pos + 1);
+                    line++;
+                    spliced = true;
+                } else {
+                    break;
+                }
+            }
+            tokenEnd = pos;
+            return ttype = TT_WORD;
+        }
+        pos++;
+        if (c == '"' || c == '\'') {
+            while (pos < end && buf[pos] != c && newlineLength(pos) == 0) {
+                if (buf[pos] == '\\' && pos + 1 < end) {
+                    pos++;
+                }
+                pos++;
+            }
+            tokenStart++;
+            tokenEnd = pos;
+            if (pos < end && buf[pos] == c) {
+                pos++;
+            }
+            return ttype = c;
+        }
+        tokenEnd = pos;
+        return ttype = c;
+    }
+
+    /**
+     * Returns the current word, or the contents of the current quoted
+     * string, as is.
+     */
+    String sval() {
+        if (!spliced) {
+            return new String(buf, tokenStart, tokenEnd - tokenStart);
+        }
+        StringBuilder word = new StringBuilder(tokenEnd - tokenStart);
+        for (int i = tokenStart; i < tokenEnd; i++) {
+            int newline = buf[i] == '\\' ? newlineLength(i + 1) : 0;
+            if (newline > 0) {
+                i += newline;
+            } else {
+                word.append(buf[i]);
+            }
+        }
+        return word.toString();
+    }
+
+    private int newlineLength(int p) {
+        if (p >= end) {
+            return 0;
+        }
+        if (buf[p] == '\n') {
+            return 1;
+        }
+        if (buf[p] == '\r') {
+            return p + 1 < end && buf[p + 1] == '\n' ? 2 : 1;
+        }
+        return 0;
+    }
+
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                c == '_' || c == '.' || c >= 128 + 32;
+    }
+}
@@ -0,0 +1,188 @@
+package com.oneapm.compiler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Precompiled headers for PCPP, shared by all PCPP runs of the process. A
+ * header processed once is replayed afterwards: its output is printed as
+ * is and the #defines and #undefs it made are applied, without lexing it
+ * again.
+ * <p>
+ * An entry belongs to a header file, the include path and the exact
+ * #define state the header was included with, since all of them change the
+ * output. It stays valid while the header and every file it included keep
+ * their modification time and size, and its #include names still resolve
+ * to the same files.
+ */
+final class PrecompiledHeaderCache {
+
+    private static final PrecompiledHeaderCache shared = new PrecompiledHeaderCache(1024);
+
+    /**
+     * The recorded effect of including a header.
+     */
+    static final class Header {
+        // state the header was included with
+        final Map<String, String> definesBefore;
+        final Set<String> nonConstantBefore;
+        final List<?> includePaths;
+        // the header itself and every file it included: path, time, size
+        final String[] files;
+        final long[] stamps;
+        // nested #include names and where they were found
+        final Map<String, String> includes;
+        // include guards of the header and the files it included
+        final Map<String, String> guards;
+
+        final String output;
+        final Map<String, String> defined;
+        final Set<String> undefined;
+        final Set<String> nonConstantAdded;
+        final Set<String> nonConstantRemoved;
+
+        Header(Map<String, String> definesBefore, Set<String> nonConstantBefore,
+               List<?> includePaths, String[] files, long[] stamps, Map<String, String> includes,
+               Map<String, String> guards, String output, Map<String, String> definesAfter, Set<String> nonConstantAfter) {
+            this.definesBefore = definesBefore;
+            this.nonConstantBefore = nonConstantBefore;
+            this.includePaths = includePaths;
+            this.files = files;
+            this.stamps = stamps;
+            this.includes = includes;
+            this.guards = guards;
+            this.output = output;
+            this.defined = new HashMap<>();
+            for (Map.Entry<String, String> define : definesAfter.entrySet()) {
+                if (!define.getValue().equals(definesBefore.get(define.getKey()))) {
+                    defined.put(define.getKey(), define.getValue());
+                }
+            }
+            this.undefined = new HashSet<>(definesBefore.keySet());
+            undefined.removeAll(definesAfter.keySet());
+            this.nonConstantAdded = new HashSet<>(nonConstantAfter);
+            nonConstantAdded.removeAll(nonConstantBefore);
+            this.nonConstantRemoved = new HashSet<>(nonConstantBefore);
+            nonConstantRemoved.removeAll(nonConstantAfter);
+        }
+
+        /**
+         * Applies the #defines and #undefs of the header.
+         */
+        void applyTo(Map<String, String> defines, Set<String> nonConstantDefines) {
+            defines.keySet().removeAll(undefined);
+            defines.putAll(defined);
+            nonConstantDefines.removeAll(nonConstantRemoved);
+            nonConstantDefines.addAll(nonConstantAdded);
+        }
+    }
+
+    private final Map<String, Header> headers;
+
+    PrecompiledHeaderCache(final int maxHeaders) {
+        headers = new LinkedHashMap<String, Header>(16, .75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Header> eldest) {
+                return size() > maxHeaders;
+            }
+        };
+    }
+
+    static PrecompiledHeaderCache shared() {
+        return shared;
+    }
+
+    /**
+     * Returns the header recorded for this file, include path and #define
+     * state, or null if there is none or it is out of date.
+     */
+    Header lookup(String path, List<?> includePaths,
+                  Map<String, String> defines, Set<String> nonConstantDefines) {
+        Header header;
+        synchronized (this) {
+            header = headers.get(key(path, includePaths, defines, nonConstantDefines));
+        }
+        if (header == null ||
+                !header.definesBefore.equals(defines) ||
+                !header.nonConstantBefore.equals(nonConstantDefines) ||
+                !header.includePaths.equals(includePaths)) {
+            return null;
+        }
+        for (int i = 0; i < header.files.length; i++) {
+            File file = new File(header.files[i]);
+            if (file.lastModified() != header.stamps[2 * i] || file.length() != header.stamps[2 * i + 1]) {
+                return null;
+            }
+        }
+        for (Map.Entry<String, String> include : header.includes.entrySet()) {
+            String found = PCPP.findFile(includePaths, include.getKey());
+            if (found == null ? include.getValue() != null : !found.equals(include.getValue())) {
+                return null;
+            }
+        }
+        return header;
+    }
+
+    /**
+     * Records the effect of including a header.
+     *
+     * @param stamps modification time and size of each file, taken before
+     *               it was read
+     */
+    void store(String path, List<?> includePaths,
+               Map<String, String> definesBefore, Set<String> nonConstantBefore,
+               List<String> files, List<Long> stamps, Map<String, String> includes,
+               Map<String, String> guards, String output, Map<String, String> definesAfter, Set<String> nonConstantAfter) {
+        long[] stampArray = new long[stamps.size()];
+        for (int i = 0; i < stampArray.length; i++) {
+            stampArray[i] = stamps.get(i);
+        }
+        Header header = new Header(definesBefore, nonConstantBefore,
+                Collections.unmodifiableList(new ArrayList<>(includePaths)),
+                files.toArray(new String[0]), stampArray, new LinkedHashMap<>(includes),
+                new HashMap<>(guards), output, definesAfter, nonConstantAfter);
+        synchronized (this) {
+            headers.put(key(path, includePaths, definesBefore, nonConstantBefore), header);
+        }
+    }
+
+    synchronized void clear() {
+        headers.clear();
+    }
+
+    synchronized int size() {
+        return headers.size();
+    }
+
+    /**
+     * The define state enters the key as an order independent hash; lookup
+     * compares the full state, so a collision only costs a miss.
+     */
+    private static String key(String path, List<?> includePaths,
+                              Map<String, String> defines, Set<String> nonConstantDefines) {
+        long hash = 0;
+        for (Map.Entry<String, String> define : defines.entrySet()) {
+            hash += mix(define.getKey().hashCode() * 31L + define.getValue().hashCode());
+        }
+        for (String name : nonConstantDefines) {
+            hash += mix(~name.hashCode());
+        }
+        return path + '\0' + includePaths + '\0' + Long.toHexString(hash);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,204 @@
+package com.oneapm.compiler;
+
+import javax.tools.JavaFileObject;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PCPP output of source files, shared by all compilers of the process, so
+ * that sources javac looks up again and again (on the sourcepath, in
+ * repeated compiles) are preprocessed only once while they do not change.
+ * <p>
+ * An entry is keyed by the file and the include directories. It stays
+ * valid while the file keeps its modification time and size, and every
+ * #include still resolves to the same file with the same content. Included
+ * files are compared by modification time and size first and by a hash of
+ * their content if those changed, so touching a header does not invalidate
+ * its users. Files without directives are not kept, as reading one again
+ * costs about as much as checking an entry for it.
+ */
+final class PreprocessedSourceCache {
+
+    private static final PreprocessedSourceCache shared = new PreprocessedSourceCache(4096);
+
+    private static final class Include {
+        final String name;
+        // null if the name did not resolve
+        final String path;
+        volatile long lastModified;
+        final long length;
+        // null if the file changed while it was preprocessed
+        final String hash;
+
+        Include(String name, String path, long lastModified, long length, String hash) {
+            this.name = name;
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+    private static final class Preprocessed {
+        final long lastModified;
+        final long length;
+        final SourceBuffer code;
+        final List<Include> includes;
+
+        Preprocessed(long lastModified, long length, SourceBuffer code, List<Include> includes) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.code = code;
+            this.includes = includes;
+        }
+    }
+
+    private final Map<String, Preprocessed> entries;
+
+    PreprocessedSourceCache(final int maxEntries) {
+        entries = new LinkedHashMap<String, Preprocessed>(16, .75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Preprocessed> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    static PreprocessedSourceCache shared() {
+        return shared;
+    }
+
+    /**
+     * Returns the PCPP output of the file object, from the cache if the
+     * object is a file whose entry is still valid.
+     */
+    SourceBuffer preprocess(JavaFileObject fo, List<String> includeDirs) throws IOException {
+        URI uri = fo.toUri();
+        if (!"file".equals(uri.getScheme())) {
+            SourceBuffer source = read(fo);
+            return PCPP.hasDirectives(source) ? run(source, fo.getName(), includeDirs, null) : source;
+        }
+        File file = new File(uri);
+        String key = file.getPath() + '\0' + includeDirs;
+        Preprocessed entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry != null && isValid(entry, file, includeDirs)) {
+            return entry.code;
+        }
+
+        long lastModified = file.lastModified();
+        long length = file.length();
+        SourceBuffer source = read(fo);
+        if (!PCPP.hasDirectives(source)) {
+            if (entry != null) {
+                synchronized (this) {
+                    entries.remove(key);
+                }
+            }
+            return source;
+        }
+        List<Include> includes = new ArrayList<>();
+        SourceBuffer code = run(source, fo.getName(), includeDirs, includes);
+        synchronized (this) {
+            entries.put(key, new Preprocessed(lastModified, length, code, includes));
+        }
+        return code;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private static SourceBuffer read(JavaFileObject fo) throws IOException {
+        try (Reader reader = new InputStreamReader(fo.openInputStream(), StandardCharsets.UTF_8)) {
+            return SourceBuffer.read(reader);
+        }
+    }
+
+    private static SourceBuffer run(SourceBuffer source, String name, List<String> includeDirs,
+                                    List<Include> includes) throws IOException {
+        SourceBuffer out = new SourceBuffer(source.length() + source.length() / 8);
+        PCPP pcpp = PCPP.acquire(includeDirs, out);
+        try {
+            pcpp.run(source.openReader(), name);
+            if (includes != null) {
+                Map<String, long[]> stamps = pcpp.getIncludeStamps();
+                for (Map.Entry<String, String> include : pcpp.getIncludes().entrySet()) {
+                    String path = include.getValue();
+                    if (path == null) {
+                        includes.add(new Include(include.getKey(), null, 0, 0, null));
+                        continue;
+                    }
+                    // stamps are those of the content PCPP read; the hash
+                    // is only good for it if the file is still unchanged
+                    File file = new File(path);
+                    long[] stamp = stamps.get(path);
+                    String hash = null;
+                    if (stamp == null) {
+                        stamp = new long[]{file.lastModified(), file.length()};
+                    } else {
+                        hash = hash(file);
+                        if (file.lastModified() != stamp[0] || file.length() != stamp[1]) {
+                            hash = null;
+                        }
+                    }
+                    includes.add(new Include(include.getKey(), path, stamp[0], stamp[1], hash));
+                }
+            }
+        } finally {
+            pcpp.release();
+        }
+        return out;
+    }
+
+    private static boolean isValid(Preprocessed entry, File file, List<String> includeDirs) throws IOException {
+        if (file.lastModified() != entry.lastModified || file.length() != entry.length) {
+            return false;
+        }
+        for (Include include : entry.includes) {
+            String path = PCPP.findFile(includeDirs, include.name);
+            if (path == null || include.path == null) {
+                if (path != include.path) {
+                    return false;
+                }
+                continue;
+            }
+            if (!path.equals(include.path)) {
+                return false;
+            }
+            File included = new File(path);
+            long lastModified = included.lastModified();
+            long length = included.length();
+            if (lastModified != include.lastModified || length != include.length) {
+                if (length != include.length || include.hash == null || !hash(included).equals(include.hash)) {
+                    return false;
+                }
+                // touched but unchanged
+                include.lastModified = lastModified;
+            }
+        }
+        return true;
+    }
+
+    private static String hash(File file) throws IOException {
+        MessageDigest md = CompilationCache.newDigest();
+        md.update(Files.readAllBytes(file.toPath()));
+        return CompilationCache.toHex(md.digest());
+    }
+}
@@ -3,65 +3,145 @@ package com.oneapm.compiler;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 class Printer {
-    static int debugPrintIndentLevel = 0;
+    // per instance, so that concurrent preprocessing runs do not share it
+    private int debugPrintIndentLevel = 0;
     ////////////
     // Output //
     ////////////
-    private final PrintWriter writer;
-    private ArrayList enabledBits = new ArrayList();
+    // output goes to one of these
+    private PrintWriter writer;
+    private SourceBuffer buffer;
+    // stack of enable bits, bottom first
+    private long[] enabledBits = new long[1];
+    private int enableDepth;
+    // copies of the output being recorded for precompiled headers
+    private final ArrayList<StringBuilder> captures = new ArrayList<>();
 
     Printer() {
         writer = null;
+        buffer = null;
     }
 
     Printer(Writer out) {
         writer = (out instanceof PrintWriter) ? (PrintWriter) out : new PrintWriter(out);
+        buffer = null;
     }
 
-    public static int getDebugPrintIndentLevel() {
+    Printer(SourceBuffer out) {
+        writer = null;
+        buffer = out;
+    }
+
+    /**
+     * Makes the printer write to out, as good as new.
+     */
+    void reset(SourceBuffer out) {
+        writer = null;
+        buffer = out;
+        enableDepth = 0;
+        debugPrintIndentLevel = 0;
+        captures.clear();
+    }
+
+    int getDebugPrintIndentLevel() {
         return debugPrintIndentLevel;
     }
 
     void println() {
         if (enabled()) {
-            writer.println();
+            if (buffer != null) {
+                buffer.append(System.lineSeparator());
+            } else {
+                writer.println();
+            }
+            for (StringBuilder capture : captures) {
+                capture.append(System.lineSeparator());
+            }
             //System.err.println();//debug
         }
     }
 
     boolean enabled() {
-        return (enabledBits.isEmpty() ||
-                ((Boolean) enabledBits.get(enabledBits.size() - 1)));
+        int top = enableDepth - 1;
+        return top < 0 || (enabledBits[top >>> 6] & (1L << top)) != 0;
     }
 
     void pushEnableBit(boolean enabled) {
-        enabledBits.add(enabled);
+        if (enableDepth >>> 6 == enabledBits.length) {
+            enabledBits = Arrays.copyOf(enabledBits, enabledBits.length * 2);
+        }
+        if (enabled) {
+            enabledBits[enableDepth >>> 6] |= 1L << enableDepth;
+        } else {
+            enabledBits[enableDepth >>> 6] &= ~(1L << enableDepth);
+        }
+        enableDepth++;
         ++debugPrintIndentLevel;
         //debugPrint(false, "PUSH_ENABLED, NOW: " + enabled());
     }
 
     void print(String s) {
         if (enabled()) {
-            writer.print(s);
+            if (buffer != null) {
+                buffer.append(s);
+            } else {
+                writer.print(s);
+            }
+            for (StringBuilder capture : captures) {
+                capture.append(s);
+            }
             //System.out.print(s);//debug
         }
     }
 
-    void flush() {
+    void print(char[] buf, int off, int len) {
         if (enabled()) {
+            if (buffer != null) {
+                buffer.append(buf, off, len);
+            } else {
+                writer.write(buf, off, len);
+            }
+            for (StringBuilder capture : captures) {
+                capture.append(buf, off, len);
+            }
+        }
+    }
+
+    /**
+     * Starts recording a copy of everything printed from now on. Recordings
+     * nest.
+     */
+    void startCapture() {
+        captures.add(new StringBuilder());
+    }
+
+    /**
+     * Ends the innermost recording and returns what it recorded.
+     */
+    String endCapture() {
+        return captures.remove(captures.size() - 1).toString();
+    }
+
+    int enableDepth() {
+        return enableDepth;
+    }
+
+    void flush() {
+        if (enabled() && writer != null) {
             writer.flush();
             //System.err.flush(); //debug
         }
     }
 
     void popEnableBit() {
-        if (enabledBits.isEmpty()) {
+        if (enableDepth == 0) {
             System.err.println("WARNING: mismatched #ifdef/endif pairs");
             return;
         }
-        enabledBits.remove(enabledBits.size() - 1);
+        enableDepth--;
         --debugPrintIndentLevel;
         //debugPrint(false, "POP_ENABLED, NOW: " + enabled());
     }
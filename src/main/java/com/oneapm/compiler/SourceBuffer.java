@@ -0,0 +1,119 @@
+package com.oneapm.compiler;
+
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable, unsynchronized char buffer holding PCPP output. It is handed to
+ * javac as is: {@link #toCharBuffer} wraps the array, and javac scans an
+ * array backed CharBuffer in place instead of copying it.
+ * <p>
+ * Once filled, the buffer's contents are not changed again and it may be
+ * read by several threads. javac does write to the array it is handed,
+ * though: JDK 8's scanner puts its end-of-input marker one char past the
+ * content, and its toArray compacts the buffer, copying the content onto
+ * itself. Both are harmless on a shared buffer because every javac writes
+ * the same values. The spare char after the content is kept on purpose for
+ * that marker. Without it javac would put the marker over the last char,
+ * if that is white space.
+ */
+final class SourceBuffer implements CharSequence {
+
+    private char[] buf;
+    private int length;
+
+    SourceBuffer(int capacity) {
+        buf = new char[Math.max(capacity, 16)];
+    }
+
+    SourceBuffer append(char[] chars, int off, int len) {
+        ensureCapacity(length + len);
+        System.arraycopy(chars, off, buf, length, len);
+        length += len;
+        return this;
+    }
+
+    SourceBuffer append(String s) {
+        int len = s.length();
+        ensureCapacity(length + len);
+        s.getChars(0, len, buf, length);
+        length += len;
+        return this;
+    }
+
+    /**
+     * Reads all of the reader into a new buffer.
+     */
+    static SourceBuffer read(Reader reader) throws IOException {
+        SourceBuffer buffer = new SourceBuffer(8192);
+        int n;
+        while (true) {
+            buffer.ensureCapacity(buffer.length + 4096);
+            n = reader.read(buffer.buf, buffer.length, buffer.buf.length - buffer.length - 1);
+            if (n < 0) {
+                return buffer;
+            }
+            buffer.length += n;
+        }
+    }
+
+    int indexOf(char c, int from) {
+        char[] chars = buf;
+        for (int i = Math.max(from, 0); i < length; i++) {
+            if (chars[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the contents as a CharBuffer sharing this buffer's array. It
+     * is writable, or javac would copy it; see the class comment for what
+     * javac writes.
+     */
+    CharBuffer toCharBuffer() {
+        return CharBuffer.wrap(buf, 0, length);
+    }
+
+    Reader openReader() {
+        return new CharArrayReader(buf, 0, length);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index >= length) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        return buf[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException(start + ", " + end);
+        }
+        return new String(buf, start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, length);
+    }
+
+    private void ensureCapacity(int capacity) {
+        // keep one char past the content for javac's end marker, see the
+        // class comment
+        if (capacity >= buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, capacity + 1));
+        }
+    }
+}
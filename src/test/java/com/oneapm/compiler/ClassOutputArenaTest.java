@@ -0,0 +1,64 @@
+package com.oneapm.compiler;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.oneapm.compiler.TestSupport.*;
+
+public class ClassOutputArenaTest {
+
+    public void testViewsKeepTheirBytes() throws Exception {
+        Map<String, ByteBuffer> target = new HashMap<>();
+        ClassOutputArena arena = new ClassOutputArena();
+        Map<String, byte[]> written = new HashMap<>();
+        // small classes back to back, two streams open at once, and classes
+        // larger than a slab
+        int[] sizes = {10, 3000, 70000, 1, 500, 200000, 64 * 1024 - 1100, 900};
+        OutputStream open = null;
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] code = new byte[sizes[i]];
+            for (int j = 0; j < code.length; j++) {
+                code[j] = (byte) (i * 31 + j);
+            }
+            written.put("C" + i, code);
+            OutputStream out = arena.open("C" + i, target::put);
+            out.write(code, 0, code.length / 2);
+            for (int j = code.length / 2; j < code.length; j++) {
+                out.write(code[j]);
+            }
+            if (i % 3 == 0) {
+                if (open != null) {
+                    open.close();
+                }
+                open = out;
+            } else {
+                out.close();
+            }
+        }
+        open.close();
+
+        assertEquals(written.keySet(), target.keySet());
+        for (Map.Entry<String, byte[]> c : written.entrySet()) {
+            ByteBuffer view = target.get(c.getKey()).duplicate();
+            assertTrue(view.isReadOnly(), "writable view handed out");
+            byte[] code = new byte[view.remaining()];
+            view.get(code);
+            assertEquals(c.getValue(), code);
+        }
+    }
+
+    public void testClosedStreamRejectsWrites() throws Exception {
+        OutputStream out = new ClassOutputArena().open("A", new ClassSinkTest.Collector());
+        out.write(1);
+        out.close();
+        out.close();
+        try {
+            out.write(2);
+            throw new AssertionError("write after close");
+        } catch (IllegalStateException expected) {
+            // closed
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.oneapm.compiler;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.oneapm.compiler.TestSupport.*;
+
+public class ClassOutputWriterTest {
+
+    public void testUnchangedFilesSkipped() throws Exception {
+        File dir = tempDir("output");
+        Map<String, byte[]> classes = new HashMap<>();
+        classes.put("a.A", new byte[]{1, 2, 3});
+        classes.put("a.b.B", new byte[]{4});
+        for (boolean atomic : new boolean[]{false, true}) {
+            ClassOutputWriter writer = new ClassOutputWriter(new File(dir, "out" + atomic).toPath(), "class",
+                    atomic, CompilerExecutors.workers());
+            assertEquals(2, writer.write(classes));
+            assertEquals(classes.get("a.b.B"), read(new File(dir, "out" + atomic + "/a/b/B.class")));
+            assertEquals(0, writer.write(classes));
+
+            Map<String, byte[]> changed = new HashMap<>(classes);
+            changed.put("a.A", new byte[]{1, 2, 3, 4});
+            assertEquals(1, writer.write(changed));
+            assertEquals(changed.get("a.A"), read(new File(dir, "out" + atomic + "/a/A.class")));
+        }
+    }
+
+    public void testPackExtension() throws Exception {
+        File dir = tempDir("output");
+        Map<String, byte[]> classes = new HashMap<>();
+        classes.put("A", new byte[]{1});
+        new ClassOutputWriter(dir.toPath(), "pack", false, CompilerExecutors.workers()).write(classes);
+        assertTrue(new File(dir, "A.pack").isFile(), "A.pack missing");
+    }
+}
@@ -0,0 +1,54 @@
+package com.oneapm.compiler;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static com.oneapm.compiler.TestSupport.*;
+
+public class ClassSinkTest {
+
+    private static final String SOURCE = "package p; public class A { class Inner { } }";
+    private static final String CLASS_PATH = System.getProperty("java.class.path");
+
+    static final class Collector implements ClassSink {
+        final Map<String, ByteBuffer> classes = new HashMap<>();
+
+        @Override
+        public void classGenerated(String className, ByteBuffer code) {
+            assertTrue(code.isReadOnly(), "writable view handed out");
+            classes.put(className, code);
+        }
+    }
+
+    public void testClassesStreamedToSink() {
+        Compiler compiler = new Compiler(false);
+        Collector sink = new Collector();
+        CompileResult result = compiler.compileSource("p/A.java", SOURCE, null, CLASS_PATH, sink);
+        assertTrue(result.isSuccess(), String.valueOf(result.getDiagnostics()));
+        assertTrue(result.getClasses().isEmpty(), "classes also kept in the result");
+        assertEquals(new HashSet<>(Arrays.asList("p.A", "p.A$Inner")), sink.classes.keySet());
+
+        // the views stay valid and match what a plain compilation returns
+        Map<String, byte[]> expected = compiler.compile("p/A.java", SOURCE, new StringWriter(), null, CLASS_PATH);
+        for (Map.Entry<String, ByteBuffer> c : sink.classes.entrySet()) {
+            byte[] code = new byte[c.getValue().remaining()];
+            c.getValue().duplicate().get(code);
+            assertEquals(expected.get(c.getKey()), code);
+        }
+    }
+
+    public void testCacheHitsPassedToSink() {
+        Compiler compiler = new Compiler(false);
+        CompilationCache cache = new CompilationCache(4);
+        compiler.setCompilationCache(cache);
+        compiler.compileSource("p/A.java", SOURCE, null, CLASS_PATH);
+        Collector sink = new Collector();
+        assertTrue(compiler.compileSource("p/A.java", SOURCE, null, CLASS_PATH, sink).isSuccess(), "hit failed");
+        assertEquals(1L, cache.getHitCount());
+        assertEquals(2, sink.classes.size());
+    }
+}
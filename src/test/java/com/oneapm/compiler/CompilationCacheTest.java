@@ -0,0 +1,99 @@
+package com.oneapm.compiler;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static com.oneapm.compiler.TestSupport.*;
+
+public class CompilationCacheTest {
+
+    public void testLeastRecentlyUsedEvicted() {
+        CompilationCache cache = new CompilationCache(2);
+        cache.put("a", classes("A", 10));
+        cache.put("b", classes("B", 10));
+        assertTrue(cache.get("a") != null, "a missing");
+        cache.put("c", classes("C", 10));
+        assertEquals(2, cache.size());
+        assertTrue(cache.get("b") == null, "least recently used entry kept");
+        assertTrue(cache.get("a") != null && cache.get("c") != null, "recent entries evicted");
+    }
+
+    public void testByteBound() {
+        CompilationCache cache = new CompilationCache(100, 25);
+        cache.put("a", classes("A", 10));
+        cache.put("b", classes("B", 10));
+        cache.put("c", classes("C", 10));
+        assertEquals(2, cache.size());
+        assertTrue(cache.get("a") == null, "oldest entry kept over the byte bound");
+        cache.put("big", classes("Big", 30));
+        assertTrue(cache.get("big") == null, "entry larger than the bound cached");
+        assertEquals(2, cache.size());
+    }
+
+    public void testGetReturnsCopy() {
+        CompilationCache cache = new CompilationCache(2);
+        cache.put("a", classes("A", 10));
+        cache.get("a").clear();
+        assertEquals(1, cache.get("a").size());
+    }
+
+    public void testCompilerHitsAndMisses() {
+        Compiler compiler = new Compiler(false);
+        CompilationCache cache = new CompilationCache(16);
+        compiler.setCompilationCache(cache);
+        String classPath = System.getProperty("java.class.path");
+        Map<String, byte[]> first = compiler.compile("A.java", "public class A { }", new StringWriter(), null, classPath);
+        Map<String, byte[]> second = compiler.compile("A.java", "public class A { }", new StringWriter(), null, classPath);
+        assertEquals(first.get("A"), second.get("A"));
+        compiler.compile("A.java", "public class A { int x; }", new StringWriter(), null, classPath);
+        assertEquals(1L, cache.getHitCount());
+        assertEquals(2L, cache.getMissCount());
+        assertTrue(compiler.compile("A.java", "public class A { x }", new StringWriter(), null, classPath) == null,
+                "broken source compiled");
+        assertEquals(2, cache.size());
+    }
+
+    public void testSourcepathDependencyChecked() throws Exception {
+        File src = tempDir("cache-src");
+        File b = write(src, "p/B.java", "package p; public class B { public static void f() { } }\n");
+        Compiler compiler = new Compiler(false);
+        CompilationCache cache = new CompilationCache(16);
+        compiler.setCompilationCache(cache);
+        String a = "package p; public class A { void g() { B.f(); } }";
+        String classPath = System.getProperty("java.class.path");
+        assertTrue(compiler.compileSource("p/A.java", a, src.getPath(), classPath).isSuccess(), "first compile");
+        assertTrue(compiler.compileSource("p/A.java", a, src.getPath(), classPath).isSuccess(), "cached compile");
+        assertEquals(1L, cache.getHitCount());
+
+        rewrite(b, "package p; public class B { }\n");
+        CompileResult result = compiler.compileSource("p/A.java", a, src.getPath(), classPath);
+        assertTrue(!result.isSuccess(), "served classes compiled against the old B");
+        assertEquals(1L, cache.getHitCount());
+        assertEquals(2L, cache.getMissCount());
+    }
+
+    public void testSourcepathHeaderChecked() throws Exception {
+        File src = tempDir("cache-src");
+        File header = write(src, "v.h", "#define VALUE 1\n");
+        write(src, "p/B.java", "#include \"v.h\"\npackage p; public class B { public static final int V = VALUE; }\n");
+        Compiler compiler = new Compiler(src.getPath(), false);
+        compiler.setCompilationCache(new CompilationCache(16));
+        String a = "package p; public class A { int v = B.V; }";
+        String classPath = System.getProperty("java.class.path");
+        byte[] first = compiler.compileSource("p/A.java", a, src.getPath(), classPath).getClasses().get("p.B");
+        rewrite(header, "#define VALUE 2\n");
+        byte[] second = compiler.compileSource("p/A.java", a, src.getPath(), classPath).getClasses().get("p.B");
+        assertTrue(first != null && second != null && !Arrays.equals(first, second), "header change not seen");
+    }
+
+    static Map<String, byte[]> classes(String name, int size) {
+        byte[] code = new byte[size];
+        for (int i = 0; i < size; i++) {
+            code[i] = (byte) (name.hashCode() + i);
+        }
+        return Collections.singletonMap(name, code);
+    }
+}
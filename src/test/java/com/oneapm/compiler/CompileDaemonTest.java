@@ -0,0 +1,171 @@
+package com.oneapm.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static com.oneapm.compiler.TestSupport.*;
+
+public class CompileDaemonTest {
+
+    public void testClassesWritten() throws Exception {
+        File dir = tempDir("daemon-src");
+        write(dir, "A.java", "public class A { B b = new B(); }\n");
+        write(dir, "B.java", "public class B { }\n");
+        File portFile = new File(tempDir("daemon-out"), "daemon.port");
+        Thread thread = start(portFile);
+        try {
+            assertEquals(0, send(portFile, dir, new String[]{"-nopack", "-d", "out", "A.java"}, null));
+            assertTrue(new File(dir, "out/A.class").isFile() && new File(dir, "out/B.class").isFile(),
+                    "classes not written relative to the client directory");
+        } finally {
+            stop(portFile, thread);
+        }
+    }
+
+    public void testEditedDependencyIsRecompiled() throws Exception {
+        checkEditedDependencyIsRecompiled(0);
+    }
+
+    public void testEditedDependencyIsRecompiledWithCache() throws Exception {
+        checkEditedDependencyIsRecompiled(16);
+    }
+
+    private static void checkEditedDependencyIsRecompiled(int cacheEntries) throws Exception {
+        // output and port file live apart from the sources, so the source
+        // directory itself does not change between the two compilations
+        File dir = tempDir("daemon-src");
+        File work = tempDir("daemon-out");
+        File out = new File(work, "out");
+        File a = write(dir, "A.java", "public class A { B b = new B(); }\n");
+        File b = write(dir, "B.java", "public class B { }\n");
+        File portFile = new File(work, "daemon.port");
+        Thread thread = start(portFile, cacheEntries);
+        try {
+            String[] args = {"-nopack", "-d", out.getPath(), a.getPath()};
+            assertEquals(0, send(portFile, dir, args, null));
+            byte[] first = read(new File(out, "B.class"));
+
+            rewrite(b, "public class B { int x; void m() { } }\n");
+            assertEquals(0, send(portFile, dir, args, null));
+            byte[] second = read(new File(out, "B.class"));
+            assertTrue(second.length > first.length, "B.class was not recompiled after B.java changed");
+        } finally {
+            stop(portFile, thread);
+        }
+    }
+
+    public void testErrorsAndStatusReturned() throws Exception {
+        File dir = tempDir("daemon-src");
+        write(dir, "Bad.java", "public class Bad { x }\n");
+        File portFile = new File(tempDir("daemon-out"), "daemon.port");
+        Thread thread = start(portFile);
+        try {
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            assertEquals(1, send(portFile, dir, new String[]{"-nopack", "-d", "out", "Bad.java"}, err));
+            String text = new String(err.toByteArray(), StandardCharsets.UTF_8);
+            assertTrue(text.contains("Bad.java"), text);
+            assertEquals(1, send(portFile, dir, new String[]{"Missing.java"}, null));
+        } finally {
+            stop(portFile, thread);
+        }
+    }
+
+    public void testWrongTokenRefused() throws Exception {
+        File dir = tempDir("daemon-src");
+        write(dir, "A.java", "public class A { }\n");
+        File portFile = new File(tempDir("daemon-out"), "daemon.port");
+        Thread thread = start(portFile);
+        try {
+            connect(portFile).close();
+            try (CompileClient.Connection connection = CompileClient.connect(portFile)) {
+                CompileClient.send(connection.socket, "not the token", dir, new String[]{"-nopack", "-d", "out", "A.java"},
+                        new PrintStream(new ByteArrayOutputStream(), true));
+                throw new AssertionError("request with a wrong token answered");
+            } catch (EOFException expected) {
+                // closed without a reply
+            }
+            assertTrue(!new File(dir, "out").exists(), "request with a wrong token compiled");
+        } finally {
+            stop(portFile, thread);
+        }
+    }
+
+    public void testDaemonGoingAwayRunsInProcess() throws Exception {
+        File dir = tempDir("daemon-src");
+        File a = write(dir, "A.java", "public class A { }\n");
+        File out = new File(tempDir("daemon-out"), "out");
+        File portFile = new File(tempDir("daemon-out"), "daemon.port");
+        Thread thread = start(portFile);
+        byte[] portInfo = null;
+        try {
+            connect(portFile).close();
+            // the daemon hangs up on a wrong token just as on shutting down
+            portInfo = read(portFile);
+            String port = new String(portInfo, StandardCharsets.UTF_8).split(" ")[0];
+            write(portFile.getParentFile(), portFile.getName(), port + " not-the-token\n");
+            System.setProperty(CompileDaemon.PORT_FILE_PROPERTY, portFile.getPath());
+            try {
+                CompileClient.main(new String[]{"-nopack", "-d", out.getPath(), a.getPath()});
+            } finally {
+                System.clearProperty(CompileDaemon.PORT_FILE_PROPERTY);
+            }
+            assertTrue(new File(out, "A.class").isFile(), "command not run in process");
+        } finally {
+            if (portInfo != null) {
+                Files.write(portFile.toPath(), portInfo);
+            }
+            stop(portFile, thread);
+        }
+    }
+
+    private static Thread start(File portFile) {
+        return start(portFile, 0);
+    }
+
+    private static Thread start(File portFile, int cacheEntries) {
+        final CompileDaemon daemon = new CompileDaemon(portFile, 60000, cacheEntries);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    daemon.run();
+                } catch (Exception exp) {
+                    throw new RuntimeException(exp);
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void stop(File portFile, Thread thread) throws Exception {
+        send(portFile, null, new String[]{CompileDaemon.STOP}, null);
+        thread.join(10000);
+        assertTrue(!portFile.exists(), "port file left behind");
+    }
+
+    private static CompileClient.Connection connect(File portFile) throws Exception {
+        CompileClient.Connection connection = null;
+        for (int i = 0; i < 200 && connection == null; i++) {
+            connection = CompileClient.connect(portFile);
+            if (connection == null) {
+                Thread.sleep(50);
+            }
+        }
+        assertTrue(connection != null, "daemon did not start");
+        return connection;
+    }
+
+    private static int send(File portFile, File baseDir, String[] args, ByteArrayOutputStream err) throws Exception {
+        try (CompileClient.Connection connection = connect(portFile)) {
+            return CompileClient.send(connection.socket, connection.token,
+                    baseDir != null ? baseDir : new File("").getAbsoluteFile(), args,
+                    new PrintStream(err != null ? err : new ByteArrayOutputStream(), true));
+        }
+    }
+}
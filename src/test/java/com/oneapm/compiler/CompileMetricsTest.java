@@ -0,0 +1,43 @@
+package com.oneapm.compiler;
+
+import java.io.File;
+
+import static com.oneapm.compiler.TestSupport.*;
+
+public class CompileMetricsTest {
+
+    static volatile byte[] sink;
+
+    public void testPhasesAndPreprocessingRecorded() throws Exception {
+        File dir = tempDir("metrics");
+        File a = write(dir, "A.java", "#define N 1\npublic class A { int n = N; }\n");
+        File b = write(dir, "B.java", "#define M 2\npublic class B { int m = M; }\n");
+        Compiler compiler = new Compiler(dir.getPath(), false);
+        CompileResult result = compiler.compileFiles(new File[]{a, b}, dir.getPath(),
+                System.getProperty("java.class.path"));
+        assertTrue(result.isSuccess(), String.valueOf(result.getDiagnostics()));
+        CompileMetrics metrics = result.getMetrics();
+        assertEquals(2, metrics.getPreprocessNanos().size());
+        assertTrue(metrics.getPhaseNanos("PARSE") > 0, metrics.toString());
+        assertTrue(metrics.getTotalNanos() > 0, metrics.toString());
+    }
+
+    public void testWorkerAllocationsCounted() throws Exception {
+        final CompileMetrics metrics = new CompileMetrics();
+        if (CompileMetrics.threadAllocatedBytes() < 0) {
+            return;
+        }
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long since = CompileMetrics.threadAllocatedBytes();
+                sink = new byte[4 << 20];
+                metrics.addAllocatedBytes(since);
+            }
+        });
+        worker.start();
+        worker.join();
+        metrics.finish();
+        assertTrue(metrics.getAllocatedBytes() >= 4 << 20, "worker allocation missing: " + metrics.getAllocatedBytes());
+    }
+}
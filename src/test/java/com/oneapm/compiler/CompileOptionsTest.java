@@ -0,0 +1,29 @@
+package com.oneapm.compiler;
+
+import java.io.StringWriter;
+import java.util.Map;
+
+import static com.oneapm.compiler.TestSupport.*;
+
+public class CompileOptionsTest {
+
+    public void testStrictCompilesCleanClass() {
+        assertTrue(compile(CompileOptions.STRICT, "public class A { }") != null, "clean class failed");
+    }
+
+    public void testStrictFailsOnWarning() {
+        String source = "import java.util.*; public class A { List l = new ArrayList(); }";
+        assertTrue(compile(CompileOptions.DEFAULT, source) != null, "raw type is only a warning by default");
+        assertTrue(compile(CompileOptions.STRICT, source) == null, "raw type passed -Werror");
+    }
+
+    public void testFastCompiles() {
+        assertTrue(compile(CompileOptions.FAST, "public class A { }") != null, "fast profile failed");
+    }
+
+    private static Map<String, byte[]> compile(CompileOptions options, String source) {
+        Compiler compiler = new Compiler(false);
+        compiler.setCompileOptions(options);
+        return compiler.compile("A.java", source, new StringWriter(), null, System.getProperty("java.class.path"));
+    }
+}
@@ -0,0 +1,47 @@
+package com.oneapm.compiler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.oneapm.compiler.TestSupport.*;
+
+public class CompilerConcurrencyTest {
+
+    private static final String CLASS_PATH = System.getProperty("java.class.path");
+
+    public void testCompileAll() {
+        Map<String, String> sources = new LinkedHashMap<>();
+        for (int i = 0; i < 16; i++) {
+            sources.put("p/C" + i + ".java", "package p; public class C" + i + " { }");
+        }
+        sources.put("p/Broken.java", "package p; public class Broken { x }");
+        Compiler compiler = new Compiler(false);
+        Map<String, CompileResult> results = compiler.compileAll(sources, null, CLASS_PATH);
+        assertEquals(sources.keySet(), results.keySet());
+        for (int i = 0; i < 16; i++) {
+            CompileResult result = results.get("p/C" + i + ".java");
+            assertTrue(result.isSuccess() && result.getClasses().containsKey("p.C" + i), "p.C" + i + " missing");
+        }
+        assertTrue(!results.get("p/Broken.java").isSuccess(), "broken source compiled");
+    }
+
+    public void testCompileAsync() throws Exception {
+        Compiler compiler = new Compiler(false);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            compiler.setAsyncExecutor(executor);
+            CompletableFuture<CompileResult> a = compiler.compileAsync("A.java", "public class A { }", null, CLASS_PATH);
+            CompletableFuture<CompileResult> b = compiler.compileAsync("B.java", "public class B { x }", null, CLASS_PATH);
+            assertTrue(a.get().getClasses().containsKey("A"), "A missing");
+            assertTrue(!b.get().isSuccess(), "broken source compiled");
+        } finally {
+            executor.shutdown();
+        }
+        compiler.setAsyncExecutor(null);
+        assertTrue(compiler.compileAsync("C.java", "public class C { }", null, CLASS_PATH).get().isSuccess(),
+                "default executor failed");
+    }
+}
@@ -0,0 +1,97 @@
+package com.oneapm.compiler;
+
+import java.io.BufferedReader;
+import java.io.Reader;
+import java.io.StringReader;
+
+import static com.oneapm.compiler.TestSupport.*;
+
+public class ConcatenatingReaderTest {
+
+    private static final String NL = System.getProperty("line.separator");
+
+    public void testJoinsContinuedLines() throws Exception {
+        assertEquals("ab" + NL + "c" + NL, readAll("a\\\nb\nc", 1024));
+        assertEquals("ab" + NL + "c" + NL, readAll("a\\\r\nb\r\nc\r\n", 1024));
+        assertEquals("a" + NL + NL + "b" + NL, readAll("a\r\rb\r", 1024));
+        assertEquals("a\\b" + NL, readAll("a\\b", 1024));
+        assertEquals("", readAll("", 1024));
+    }
+
+    public void testLoneBackslashLine() throws Exception {
+        assertEquals("a" + NL + "b" + NL, readAll("a\n\\\nb\n", 1024));
+        assertEquals("a" + NL, readAll("a\n\\", 1024));
+    }
+
+    public void testReadSizesAgree() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            text.append("line ").append(i).append(i % 7 == 0 ? "\\\n" : i % 5 == 0 ? "\r\n" : "\n");
+        }
+        String expected = readAll(text.toString(), 100000);
+        assertEquals(expected, readAll(text.toString(), 1));
+        assertEquals(expected, readAll(text.toString(), 7));
+        StringBuilder single = new StringBuilder();
+        try (Reader reader = new ConcatenatingReader(new BufferedReader(new StringReader(text.toString())))) {
+            int c;
+            while ((c = reader.read()) != -1) {
+                single.append((char) c);
+            }
+        }
+        assertEquals(expected, single.toString());
+    }
+
+    public void testReturnsWithoutWaitingForMoreInput() throws Exception {
+        ChunkReader chunks = new ChunkReader("ab", "c\\", "\nd");
+        try (Reader reader = new ConcatenatingReader(new BufferedReader(chunks))) {
+            char[] buf = new char[100];
+            assertEquals("ab", new String(buf, 0, reader.read(buf, 0, buf.length)));
+            assertEquals(1, chunks.reads);
+            // the backslash waits for the next chunk to tell if it joins lines
+            assertEquals("c", new String(buf, 0, reader.read(buf, 0, buf.length)));
+            assertEquals(2, chunks.reads);
+            assertEquals("d", new String(buf, 0, reader.read(buf, 0, buf.length)));
+            assertEquals(3, chunks.reads);
+            assertEquals(NL, new String(buf, 0, reader.read(buf, 0, buf.length)));
+            assertEquals(-1, reader.read(buf, 0, buf.length));
+        }
+    }
+
+    /**
+     * Hands out one chunk per read, like a pipe whose writer is slow.
+     */
+    private static final class ChunkReader extends Reader {
+        private final String[] chunks;
+        int reads;
+
+        ChunkReader(String... chunks) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (reads == chunks.length) {
+                return -1;
+            }
+            String chunk = chunks[reads++];
+            chunk.getChars(0, chunk.length(), cbuf, off);
+            return chunk.length();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static String readAll(String text, int chunk) throws Exception {
+        StringBuilder out = new StringBuilder();
+        char[] buf = new char[chunk];
+        try (Reader reader = new ConcatenatingReader(new BufferedReader(new StringReader(text)))) {
+            int n;
+            while ((n = reader.read(buf, 0, buf.length)) != -1) {
+                out.append(buf, 0, n);
+            }
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,34 @@
+package com.oneapm.compiler;
+
+import javax.tools.Diagnostic;
+
+import static com.oneapm.compiler.TestSupport.*;
+
+public class DiagnosticBufferTest {
+
+    private static final String BROKEN = "public class A { int a = x; int b = y; int c = z; }";
+
+    public void testLimitsKeepCounts() {
+        Compiler compiler = new Compiler(false);
+        compiler.setDiagnosticLimits(1, 0);
+        CompileResult result = compile(compiler);
+        assertTrue(!result.isSuccess(), "broken source compiled");
+        assertEquals(3, result.getErrorCount());
+        assertEquals(1, result.getDiagnostics().size());
+    }
+
+    public void testFailFastKeepsFirstError() {
+        Compiler compiler = new Compiler(false);
+        compiler.setFailFast(true);
+        compiler.setDiagnosticLimits(0, 0);
+        CompileResult result = compile(compiler);
+        assertTrue(!result.isSuccess(), "broken source compiled");
+        assertEquals(1, result.getErrorCount());
+        assertEquals(1, result.getDiagnostics().size());
+        assertEquals(Diagnostic.Kind.ERROR, result.getDiagnostics().get(0).getKind());
+    }
+
+    private static CompileResult compile(Compiler compiler) {
+        return compiler.compileSource("A.java", BROKEN, null, System.getProperty("java.class.path"));
+    }
+}
@@ -0,0 +1,121 @@
+package com.oneapm.compiler;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Map;
+
+import static com.oneapm.compiler.CompilationCacheTest.classes;
+import static com.oneapm.compiler.TestSupport.*;
+
+public class DiskCompilationCacheTest {
+
+    public void testEntriesSurviveReopen() throws Exception {
+        File dir = tempDir("disk-cache");
+        DiskCompilationCache cache = new DiskCompilationCache(dir, 1 << 20);
+        cache.put(key(1), classes("A", 100));
+        cache.close();
+
+        cache = new DiskCompilationCache(dir, 1 << 20);
+        try {
+            Map<String, byte[]> classes = cache.get(key(1));
+            assertTrue(classes != null, "entry lost on reopen");
+            assertEquals(classes("A", 100).get("A"), classes.get("A"));
+            assertTrue(cache.get(key(2)) == null, "unknown key found");
+            assertEquals(1L, cache.getHitCount());
+            assertEquals(1L, cache.getMissCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testCorruptRecordIsMiss() throws Exception {
+        File dir = tempDir("disk-cache");
+        DiskCompilationCache cache = new DiskCompilationCache(dir, 1 << 20);
+        try {
+            cache.put(key(1), classes("A", 100));
+            try (RandomAccessFile segment = new RandomAccessFile(new File(dir, "seg-1.dat"), "rw")) {
+                // flip a byte of the payload
+                long at = segment.length() - 10;
+                segment.seek(at);
+                int b = segment.read();
+                segment.seek(at);
+                segment.write(b ^ 0xFF);
+            }
+            assertTrue(cache.get(key(1)) == null, "corrupt record served");
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testFullIndexWithOneSegment() throws Exception {
+        File dir = tempDir("disk-cache");
+        final DiskCompilationCache cache = new DiskCompilationCache(dir, 1 << 20, 4);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 50; i++) {
+                    cache.put(key(i), classes("C" + i, 10));
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        thread.join(10000);
+        assertTrue(!thread.isAlive(), "put does not return when the index is full");
+        try {
+            assertTrue(cache.get(key(49)) != null, "latest entry missing");
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testOldSegmentsDroppedOverCap() throws Exception {
+        File dir = tempDir("disk-cache");
+        DiskCompilationCache cache = new DiskCompilationCache(dir, 8 * 1024);
+        try {
+            for (int i = 0; i < 20; i++) {
+                cache.put(key(i), classes("C" + i, 1000));
+            }
+            assertTrue(cache.sizeInBytes() <= 8 * 1024, "size over cap: " + cache.sizeInBytes());
+            assertTrue(cache.get(key(0)) == null, "oldest entry kept");
+            assertTrue(cache.get(key(19)) != null, "newest entry dropped");
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testSourcepathDependencyCheckedAfterReopen() throws Exception {
+        File dir = tempDir("disk-cache");
+        File src = tempDir("cache-src");
+        File b = write(src, "p/B.java", "package p; public class B { public static void f() { } }\n");
+        String a = "package p; public class A { void g() { B.f(); } }";
+        String classPath = System.getProperty("java.class.path");
+        DiskCompilationCache cache = new DiskCompilationCache(dir, 1 << 20);
+        try {
+            Compiler compiler = new Compiler(false);
+            compiler.setDiskCache(cache);
+            assertTrue(compiler.compileSource("p/A.java", a, src.getPath(), classPath).isSuccess(), "first compile");
+        } finally {
+            cache.close();
+        }
+
+        rewrite(b, "package p; public class B { }\n");
+        cache = new DiskCompilationCache(dir, 1 << 20);
+        try {
+            Compiler compiler = new Compiler(false);
+            compiler.setDiskCache(cache);
+            assertTrue(!compiler.compileSource("p/A.java", a, src.getPath(), classPath).isSuccess(),
+                    "served classes compiled against the old B");
+            assertEquals(0L, cache.getHitCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+    static String key(int i) {
+        MessageDigest md = CompilationCache.newDigest();
+        CompilationCache.update(md, String.valueOf(i));
+        return CompilationCache.toHex(md.digest());
+    }
+}
@@ -0,0 +1,46 @@
+package com.oneapm.compiler;
+
+import java.io.File;
+
+import static com.oneapm.compiler.TestSupport.*;
+
+public class IncludePathIndexTest {
+
+    public void testExists() throws Exception {
+        File dir = tempDir("index");
+        write(dir, "a.h", "");
+        write(dir, "sub/b.h", "");
+        IncludePathIndex index = new IncludePathIndex(1000);
+        assertTrue(index.exists(dir.getPath(), "a.h"), "a.h");
+        assertTrue(index.exists(dir.getPath(), "sub/b.h"), "sub/b.h");
+        assertTrue(index.exists(dir.getPath(), "./a.h"), "./a.h");
+        assertTrue(!index.exists(dir.getPath(), "b.h"), "b.h");
+        // like File.exists, which the index replaces
+        assertTrue(index.exists(dir.getPath(), "sub"), "directory");
+        assertTrue(index.exists(dir.getPath(), "sub/../a.h"), "sub/../a.h");
+        assertTrue(!index.exists(dir.getPath(), "sub/../b.h"), "sub/../b.h");
+        assertTrue(!index.exists(new File(dir, "missing").getPath(), "a.h"), "missing directory");
+    }
+
+    public void testCaseFollowsFileSystem() throws Exception {
+        File dir = tempDir("index");
+        write(dir, "foo.h", "");
+        write(dir, "sub/bar.h", "");
+        IncludePathIndex index = new IncludePathIndex(1000);
+        // a name matching only when case is ignored answers like File.exists,
+        // which is true on case-insensitive file systems
+        for (String name : new String[]{"Foo.h", "FOO.H", "SUB/bar.h", "sub/Bar.h"}) {
+            assertEquals(new File(dir, name).exists(), index.exists(dir.getPath(), name));
+        }
+        assertTrue(!index.exists(dir.getPath(), "Fo.h"), "Fo.h");
+    }
+
+    public void testNewFileSeenAfterRefresh() throws Exception {
+        File dir = tempDir("index");
+        IncludePathIndex index = new IncludePathIndex(0);
+        assertTrue(!index.exists(dir.getPath(), "c.h"), "c.h before it was written");
+        write(dir, "c.h", "");
+        dir.setLastModified(dir.lastModified() + 2000);
+        assertTrue(index.exists(dir.getPath(), "c.h"), "c.h not seen");
+    }
+}
@@ -0,0 +1,48 @@
+package com.oneapm.compiler;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Map;
+
+import static com.oneapm.compiler.TestSupport.*;
+
+public class IncrementalCompilerTest {
+
+    public void testRemovedMethodBreaksUserOfSubclass() throws Exception {
+        File dir = tempDir("incremental");
+        File a = write(dir, "A.java", "public class A { public void m() { } }\n");
+        File b = write(dir, "B.java", "public class B extends A { }\n");
+        File c = write(dir, "C.java", "public class C extends B { void n() { m(); } }\n");
+        File[] files = {a, b, c};
+        Compiler compiler = new Compiler(false);
+        compiler.setIncremental(true);
+        assertTrue(compile(compiler, files, dir) != null, "first compilation failed");
+
+        rewrite(a, "public class A { }\n");
+        assertTrue(compile(compiler, files, dir) == null, "C still compiles without A.m()");
+    }
+
+    public void testUnchangedFilesAreKept() throws Exception {
+        File dir = tempDir("incremental");
+        File a = write(dir, "A.java", "public class A { public int m() { return 1; } }\n");
+        File b = write(dir, "B.java", "public class B { int n() { return new A().m(); } }\n");
+        File[] files = {a, b};
+        Compiler compiler = new Compiler(false);
+        compiler.setIncremental(true);
+        Map<String, byte[]> first = compile(compiler, files, dir);
+
+        rewrite(a, "public class A { public int m() { return 2; } }\n");
+        Map<String, byte[]> second = compile(compiler, files, dir);
+        assertEquals(first.keySet(), second.keySet());
+        assertTrue(second.get("B") == first.get("B"), "B was recompiled though A's API did not change");
+        assertTrue(!Arrays.equals(second.get("A"), first.get("A")), "A was not recompiled");
+    }
+
+    private static Map<String, byte[]> compile(Compiler compiler, File[] files, File dir) throws Exception {
+        // an empty sourcepath keeps javac from compiling the files on its own
+        File sourcePath = new File(dir, "empty");
+        sourcePath.mkdirs();
+        return compiler.compile(files, new StringWriter(), sourcePath.getPath(), System.getProperty("java.class.path"));
+    }
+}
@@ -0,0 +1,92 @@
+package com.oneapm.compiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.zip.ZipEntry;
+
+import static com.oneapm.compiler.TestSupport.*;
+
+public class JarClassWriterTest {
+
+    public void testEntriesSortedAndStored() throws Exception {
+        Map<String, byte[]> classes = new HashMap<>();
+        classes.put("b.B", new byte[]{1, 2, 3});
+        classes.put("a.A", new byte[]{4, 5});
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JarClassWriter jar = new JarClassWriter(bytes, "class", true)) {
+            jar.write(classes);
+        }
+        try (JarInputStream in = new JarInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            assertTrue(in.getManifest() != null, "no manifest");
+            List<String> names = new ArrayList<>();
+            JarEntry entry;
+            while ((entry = in.getNextJarEntry()) != null) {
+                names.add(entry.getName());
+                assertEquals(ZipEntry.STORED, entry.getMethod());
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                byte[] buf = new byte[64];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    content.write(buf, 0, n);
+                }
+                String name = entry.getName().replace('/', '.');
+                assertEquals(classes.get(name.substring(0, name.length() - ".class".length())), content.toByteArray());
+            }
+            assertEquals(Arrays.asList("a/A.class", "b/B.class"), names);
+        }
+    }
+
+    public void testStreamClosedIfManifestFails() throws Exception {
+        final boolean[] closed = new boolean[1];
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        try {
+            new JarClassWriter(failing, "class", true, true);
+            throw new AssertionError("manifest written to a failing stream");
+        } catch (IOException expected) {
+            assertEquals("disk full", expected.getMessage());
+        }
+        assertTrue(closed[0], "stream left open");
+    }
+
+    public void testCommandLineJarIsReproducible() throws Exception {
+        File dir = tempDir("jar");
+        write(dir, "p/A.java", "package p; public class A { class Inner { } }\n");
+        File jar = new File(dir, "out.jar");
+        String[] args = {"-nopack", "-jar", jar.getPath(), new File(dir, "p/A.java").getPath()};
+        Compiler.main(args);
+        byte[] first = read(jar);
+        Compiler.main(args);
+        assertEquals(first, read(jar));
+
+        Set<String> names = new HashSet<>();
+        try (JarInputStream in = new JarInputStream(new ByteArrayInputStream(first))) {
+            JarEntry entry;
+            while ((entry = in.getNextJarEntry()) != null) {
+                names.add(entry.getName());
+            }
+        }
+        assertEquals(new HashSet<>(Arrays.asList("p/A$Inner.class", "p/A.class")), names);
+    }
+}
@@ -0,0 +1,71 @@
+package com.oneapm.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+
+import static com.oneapm.compiler.TestSupport.*;
+
+public class MemoryClassLoaderTest {
+
+    private static final String SOURCE = "package p; public class Hello implements java.util.concurrent.Callable<String> {" +
+            " public String call() { return new Helper().name(); } }" +
+            " class Helper { String name() { return \"hello\"; } }";
+
+    public void testLoadAndRun() throws Exception {
+        CompileResult result = new Compiler(false).compileSource("p/Hello.java", SOURCE, null,
+                System.getProperty("java.class.path"));
+        try (MemoryClassLoader loader = result.newClassLoader(getClass().getClassLoader())) {
+            Class<?> hello = loader.loadClass("p.Hello");
+            assertTrue(hello.getClassLoader() == loader, "not defined by the memory loader");
+            assertEquals("hello", ((Callable<?>) hello.getDeclaredConstructor().newInstance()).call());
+            try (InputStream in = loader.getResourceAsStream("p/Helper.class")) {
+                assertTrue(in != null, "class bytes not served as a resource");
+            }
+        }
+    }
+
+    public void testLoadsFromClassBuffers() throws Exception {
+        CompileResult result = new Compiler(false).compileSource("p/Hello.java", SOURCE, null,
+                System.getProperty("java.class.path"));
+        ByteBuffer hello = result.getClassBuffers().get("p.Hello");
+        int remaining = hello.remaining();
+        try (MemoryClassLoader loader = result.newClassLoader(getClass().getClassLoader())) {
+            assertEquals("hello", ((Callable<?>) loader.loadClass("p.Hello").getDeclaredConstructor().newInstance()).call());
+            assertEquals(remaining, hello.remaining());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (InputStream in = loader.getResourceAsStream("p/Hello.class")) {
+                int b;
+                while ((b = in.read()) != -1) {
+                    bytes.write(b);
+                }
+            }
+            assertEquals(result.getClasses().get("p.Hello"), bytes.toByteArray());
+        }
+    }
+
+    public void testClosedLoaderDefinesNoMore() throws Exception {
+        CompileResult result = new Compiler(false).compileSource("p/Hello.java", SOURCE, null,
+                System.getProperty("java.class.path"));
+        MemoryClassLoader loader = result.newClassLoader(getClass().getClassLoader());
+        loader.close();
+        try {
+            loader.loadClass("p.Hello");
+            throw new AssertionError("class loaded after close");
+        } catch (ClassNotFoundException expected) {
+            // dropped
+        }
+    }
+
+    public void testFailedCompilationHasNoLoader() {
+        CompileResult result = new Compiler(false).compileSource("A.java", "class A { x }", null,
+                System.getProperty("java.class.path"));
+        try {
+            result.newClassLoader(null);
+            throw new AssertionError("loader for a failed compilation");
+        } catch (IllegalStateException expected) {
+            // failed
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.oneapm.compiler;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.oneapm.compiler.TestSupport.*;
+
+public class MemoryJavaFileManagerTest {
+
+    public void testPreprocessedFilesInDirectoryWithSpace() throws Exception {
+        File dir = new File(tempDir("mfm"), "sp ace");
+        File sp = write(dir, "Sp.java", "#define VALUE 1\npublic class Sp { int v = VALUE; Dep d; }\n");
+        write(dir, "Dep.java", "#define OTHER 2\npublic class Dep { int v = OTHER; }\n");
+        Compiler compiler = new Compiler(dir.getPath(), false);
+        StringWriter err = new StringWriter();
+        Map<String, byte[]> classes = compiler.compile(new File[]{sp}, err, dir.getPath(),
+                System.getProperty("java.class.path"));
+        assertTrue(classes != null, err.toString());
+        assertTrue(classes.containsKey("Sp") && classes.containsKey("Dep"), String.valueOf(classes.keySet()));
+    }
+
+    public void testStringSourceName() throws Exception {
+        Compiler compiler = new Compiler(false);
+        StringWriter err = new StringWriter();
+        Map<String, byte[]> classes = compiler.compile("p/Str.java", "package p; public class Str { }",
+                err, null, System.getProperty("java.class.path"));
+        assertTrue(classes != null, err.toString());
+        assertTrue(classes.containsKey("p.Str"), String.valueOf(classes.keySet()));
+    }
+
+    public void testPreprocessedUnitsKeepOrder() throws Exception {
+        File dir = tempDir("mfm");
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            files.add(write(dir, "U" + i + ".java", "#define N " + i + "\npublic class U" + i + " { int n = N; }\n"));
+        }
+        StandardJavaFileManager fileManager = ToolProvider.getSystemJavaCompiler().getStandardFileManager(null, null, null);
+        List<JavaFileObject> units = new ArrayList<>();
+        for (JavaFileObject unit : fileManager.getJavaFileObjectsFromFiles(files)) {
+            units.add(unit);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<JavaFileObject> result = MemoryJavaFileManager.preprocessedFileObjects(units,
+                    Collections.singletonList(dir.getPath()), null, executor);
+            assertEquals(units.size(), result.size());
+            for (int i = 0; i < units.size(); i++) {
+                assertEquals(units.get(i).toUri(), result.get(i).toUri());
+                String code = result.get(i).getCharContent(true).toString();
+                assertTrue(code.contains("int n = " + i + ";"), code);
+            }
+        } finally {
+            executor.shutdown();
+            fileManager.close();
+        }
+    }
+
+    public void testPreprocessingErrorReportedForItsUnit() throws Exception {
+        File dir = tempDir("mfm");
+        File good = write(dir, "Good.java", "#define Y 1\npublic class Good { int y = Y; }\n");
+        File bad = write(dir, "Bad.java", "#define X 1\n#define X (1 + 2)\npublic class Bad { }\n");
+        Compiler compiler = new Compiler(dir.getPath(), false);
+        CompileResult result = compiler.compileFiles(new File[]{good, bad}, dir.getPath(),
+                System.getProperty("java.class.path"));
+        assertTrue(!result.isSuccess(), "bad directive compiled");
+        boolean found = false;
+        for (Diagnostic<? extends JavaFileObject> diagnostic : result.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                String message = diagnostic.getMessage(null);
+                assertTrue(message.contains("Bad.java") && message.contains("redefine"), message);
+                found = true;
+            }
+        }
+        assertTrue(found, "no error reported");
+    }
+}
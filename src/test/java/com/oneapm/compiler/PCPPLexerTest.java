@@ -0,0 +1,40 @@
+package com.oneapm.compiler;
+
+import java.util.Collections;
+
+import static com.oneapm.compiler.TestSupport.*;
+
+public class PCPPLexerTest {
+
+    public void testSplicedDirective() throws Exception {
+        assertTrue(preprocess("#define LONG \\\n  5\nint x = LONG;\n").contains("int x = 5;"), "value on next line");
+        assertTrue(preprocess("#def\\\nine X 3\nint y = X;\n").contains("int y = 3;"), "spliced keyword");
+        assertTrue(preprocess("#define A 4\r\nint a = A;\r\n").contains("int a = 4;"), "CR LF line ends");
+    }
+
+    public void testSplicedText() throws Exception {
+        assertTrue(preprocess("#define A 4\nint lo\\\nng = A;\n").contains("int long = 4;"), "spliced word");
+        assertTrue(preprocess("#define A 4\nint x = \\\r\nA;\n").contains("int x = 4;"), "CR LF splice");
+    }
+
+    public void testMacrosOnlyReplacedInCode() throws Exception {
+        String out = preprocess("#define A /* c */ 4 // d\n" +
+                "String s = \"A\"; /* A */ int b = A; // A\nchar c = 'A';\nString t = \"\\\"A\";\n");
+        assertTrue(out.contains("String s = \"A\"; /* A */ int b = 4; // A"), out);
+        assertTrue(out.contains("char c = 'A';"), out);
+        assertTrue(out.contains("String t = \"\\\"A\";"), out);
+    }
+
+    public void testBlockCommentAcrossLines() throws Exception {
+        String out = preprocess("#define A 4\n/*\n#define A 5\n*/ int a = A;\n");
+        assertTrue(out.contains("int a = 4;"), out);
+    }
+
+    public void testIndentedDirective() throws Exception {
+        assertTrue(preprocess("  #  define B 7\nint b = B;\n").contains("int b = 7;"), "indented directive");
+    }
+
+    private static String preprocess(String source) throws Exception {
+        return PCPPTest.preprocess(source, Collections.<String>emptyList());
+    }
+}
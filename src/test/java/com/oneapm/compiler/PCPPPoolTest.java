@@ -0,0 +1,85 @@
+package com.oneapm.compiler;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.oneapm.compiler.TestSupport.*;
+
+public class PCPPPoolTest {
+
+    private static final List<String> NO_INCLUDES = Collections.emptyList();
+
+    public void testReleasedInstanceReused() throws Exception {
+        PCPP first = PCPP.acquire(NO_INCLUDES, new SourceBuffer(16));
+        PCPP nested = PCPP.acquire(NO_INCLUDES, new SourceBuffer(16));
+        assertTrue(nested != first, "instance in use handed out again");
+        nested.release();
+        first.release();
+        PCPP again = PCPP.acquire(NO_INCLUDES, new SourceBuffer(16));
+        again.release();
+        assertTrue(again == first, "released instance not reused");
+    }
+
+    public void testNoStateLeaksBetweenRuns() throws Exception {
+        assertTrue(run("#define A 1\n#if 0\nint a = A;\n").contains("// # define A 1"), "first run");
+        String out = run("int a = A;\n");
+        assertTrue(out.contains("int a = A;"), out);
+    }
+
+    public void testDeepConditionals() throws Exception {
+        StringBuilder source = new StringBuilder("#define ON 1\n");
+        int depth = 150;
+        for (int i = 0; i < depth; i++) {
+            source.append(i == 100 ? "#ifdef OFF\n" : "#ifdef ON\n");
+        }
+        source.append("int hidden;\n");
+        for (int i = 0; i < depth; i++) {
+            source.append("#endif\n");
+            if (i == depth - 100 - 1) {
+                source.append("int shown;\n");
+            }
+        }
+        String out = run(source.toString());
+        assertTrue(!out.contains("int hidden;"), "disabled at depth 100 but printed");
+        assertTrue(out.contains("int shown;"), "enabled again after #endif but not printed");
+    }
+
+    public void testConcurrentRuns() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                final int n = i;
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return run("#define N " + n + "\nint n = N;\n");
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                String out = results.get(i).get();
+                assertTrue(out.contains("int n = " + i + ";"), out);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static String run(String source) throws Exception {
+        SourceBuffer out = new SourceBuffer(source.length());
+        PCPP pcpp = PCPP.acquire(NO_INCLUDES, out);
+        try {
+            pcpp.run(new StringReader(source), "Test.java");
+        } finally {
+            pcpp.release();
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,122 @@
+package com.oneapm.compiler;
+
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static com.oneapm.compiler.PreprocessedSourceCacheTest.tokens;
+import static com.oneapm.compiler.TestSupport.*;
+
+public class PCPPTest {
+
+    public void testPrecompiledHeaderReplay() throws Exception {
+        File dir = tempDir("pcpp");
+        write(dir, "h.h", "#define V 1\n#define W 2\nint header;\n");
+        List<String> includes = Collections.singletonList(dir.getPath());
+        PrecompiledHeaderCache.shared().clear();
+        String first = preprocess("#include \"h.h\"\nint x = W;\n", includes);
+        assertEquals(1, PrecompiledHeaderCache.shared().size());
+        String second = preprocess("#include \"h.h\"\nint x = W;\n", includes);
+        assertEquals(first, second);
+        assertTrue(tokens(second).contains("intheader;") && tokens(second).contains("intx=2;"), second);
+    }
+
+    public void testPrecompiledHeaderChangedOnDisk() throws Exception {
+        File dir = tempDir("pcpp");
+        File header = write(dir, "h.h", "#define V 1\n");
+        List<String> includes = Collections.singletonList(dir.getPath());
+        assertTrue(tokens(preprocess("#include \"h.h\"\nint x = V;\n", includes)).contains("intx=1;"), "first run");
+        rewrite(header, "#define V 22\n");
+        String out = preprocess("#include \"h.h\"\nint x = V;\n", includes);
+        assertTrue(tokens(out).contains("intx=22;"), out);
+    }
+
+    public void testPrecompiledHeaderDependsOnDefines() throws Exception {
+        File dir = tempDir("pcpp");
+        write(dir, "h.h", "#ifdef BIG\nint big;\n#else\nint small;\n#endif\n");
+        List<String> includes = Collections.singletonList(dir.getPath());
+        assertTrue(tokens(preprocess("#include \"h.h\"\n", includes)).contains("intsmall;"), "without BIG");
+        String out = preprocess("#define BIG 1\n#include \"h.h\"\n", includes);
+        assertTrue(tokens(out).contains("intbig;") && !tokens(out).contains("intsmall;"), out);
+    }
+
+    public void testIncludeStampsTakenWhenRead() throws Exception {
+        File dir = tempDir("pcpp");
+        File header = write(dir, "h.h", "#define V 1\n");
+        long lastModified = header.lastModified();
+        List<String> includes = Collections.singletonList(dir.getPath());
+        PrecompiledHeaderCache.shared().clear();
+        // the second run replays the header from the precompiled header cache
+        for (int i = 0; i < 2; i++) {
+            PCPP pcpp = new PCPP(includes, new StringWriter());
+            pcpp.run(new StringReader("#include \"h.h\"\nint x = V;\n"), "Test.java");
+            header.setLastModified(lastModified + 10000);
+            long[] stamp = pcpp.getIncludeStamps().get(header.getPath());
+            assertTrue(stamp != null && stamp[0] == lastModified && stamp[1] == 12, "stamp not taken when read");
+            header.setLastModified(lastModified);
+        }
+        assertEquals(1, PrecompiledHeaderCache.shared().size());
+    }
+
+    public void testHasDirectives() {
+        assertTrue(PCPP.hasDirectives("#define A 1\n"), "directive on first line");
+        assertTrue(PCPP.hasDirectives("int a;\n \t#ifdef A\n#endif\n"), "indented directive");
+        assertTrue(!PCPP.hasDirectives("int a; // #define A 1\nString s = \"#x\";\n"), "'#' inside a line");
+        assertTrue(PCPP.hasDirectives("int \\\na;\n"), "backslash newline");
+        assertTrue(PCPP.hasDirectives("int \\\r\na;\n"), "backslash CR LF");
+        assertTrue(!PCPP.hasDirectives("char c = '\\\\';\n"), "backslash not ending a line");
+    }
+
+    public void testSplicedLineWithoutDirectives() throws Exception {
+        File dir = tempDir("pcpp");
+        Compiler compiler = new Compiler(dir.getPath(), false);
+        StringWriter err = new StringWriter();
+        Map<String, byte[]> classes = compiler.compile("S.java",
+                "public class S { String s = \"a\\\nb\"; }\n", err, null, System.getProperty("java.class.path"));
+        assertTrue(classes != null, err.toString());
+    }
+
+    public void testIncludeGuard() throws Exception {
+        File dir = tempDir("pcpp");
+        write(dir, "g.h", "// comment\n#ifndef G_H\n#define G_H 1\nint guarded;\n#endif\n");
+        List<String> includes = Collections.singletonList(dir.getPath());
+        String out = preprocess("#include \"g.h\"\n#include \"g.h\"\n", includes);
+        assertEquals(1, count(out, "intguarded;"));
+        out = preprocess("#include \"g.h\"\n#undef G_H\n#include \"g.h\"\n", includes);
+        assertEquals(2, count(out, "intguarded;"));
+    }
+
+    public void testNotAnIncludeGuard() throws Exception {
+        File dir = tempDir("pcpp");
+        write(dir, "tail.h", "#ifndef T_H\n#define T_H 1\nint guarded;\n#endif\nint tail;\n");
+        write(dir, "else.h", "#ifndef E_H\n#define E_H 1\nint first;\n#else\nint again;\n#endif\n");
+        List<String> includes = Collections.singletonList(dir.getPath());
+        String out = preprocess("#include \"tail.h\"\n#include \"tail.h\"\n", includes);
+        assertEquals(1, count(out, "intguarded;"));
+        assertEquals(2, count(out, "inttail;"));
+        out = preprocess("#include \"else.h\"\n#include \"else.h\"\n", includes);
+        assertEquals(1, count(out, "intfirst;"));
+        assertEquals(1, count(out, "intagain;"));
+    }
+
+    /**
+     * Counts the occurrences of part in the output, white space ignored.
+     */
+    static int count(String out, String part) {
+        String text = tokens(out);
+        int n = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            n++;
+        }
+        return n;
+    }
+
+    static String preprocess(String source, List<String> includes) throws Exception {
+        StringWriter out = new StringWriter();
+        new PCPP(includes, out).run(new StringReader(source), "Test.java");
+        return out.toString();
+    }
+}
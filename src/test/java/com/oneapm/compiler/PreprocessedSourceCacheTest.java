@@ -0,0 +1,70 @@
+package com.oneapm.compiler;
+
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import static com.oneapm.compiler.TestSupport.*;
+
+public class PreprocessedSourceCacheTest {
+
+    public void testEntryKeptUntilSourceOrHeaderChanges() throws Exception {
+        File dir = tempDir("ppcache");
+        File header = write(dir, "h.h", "#define V 1\n");
+        File source = write(dir, "A.java", "#include \"h.h\"\npublic class A { int v = V; }\n");
+        List<String> includes = Collections.singletonList(dir.getPath());
+        PreprocessedSourceCache cache = new PreprocessedSourceCache(16);
+        StandardJavaFileManager fileManager = ToolProvider.getSystemJavaCompiler().getStandardFileManager(null, null, null);
+        try {
+            JavaFileObject unit = fileManager.getJavaFileObjects(source).iterator().next();
+            SourceBuffer first = cache.preprocess(unit, includes);
+            assertTrue(tokens(first).contains("intv=1;"), first.toString());
+            assertTrue(cache.preprocess(unit, includes) == first, "unchanged source preprocessed again");
+
+            // a touched header with the same content keeps the entry
+            rewrite(header, "#define V 1\n");
+            assertTrue(cache.preprocess(unit, includes) == first, "touched header invalidated the entry");
+
+            rewrite(header, "#define V 2\n");
+            SourceBuffer second = cache.preprocess(unit, includes);
+            assertTrue(tokens(second).contains("intv=2;"), second.toString());
+
+            rewrite(source, "#include \"h.h\"\npublic class A { int w = V; }\n");
+            assertTrue(tokens(cache.preprocess(unit, includes)).contains("intw=2;"), "edited source not reread");
+            assertEquals(1, cache.size());
+        } finally {
+            fileManager.close();
+        }
+    }
+
+    public void testSourceWithoutDirectivesNotKept() throws Exception {
+        File source = write(tempDir("ppcache"), "A.java", "public class A { }\n");
+        PreprocessedSourceCache cache = new PreprocessedSourceCache(16);
+        StandardJavaFileManager fileManager = ToolProvider.getSystemJavaCompiler().getStandardFileManager(null, null, null);
+        try {
+            JavaFileObject unit = fileManager.getJavaFileObjects(source).iterator().next();
+            assertEquals("public class A { }\n", cache.preprocess(unit, Collections.<String>emptyList()).toString());
+            assertEquals(0, cache.size());
+
+            // an entry goes once the directives do
+            rewrite(source, "#define V 1\npublic class A { int v = V; }\n");
+            assertTrue(tokens(cache.preprocess(unit, Collections.<String>emptyList())).contains("intv=1;"), "edited source not reread");
+            assertEquals(1, cache.size());
+            rewrite(source, "public class A { int v; }\n");
+            assertEquals("public class A { int v; }\n", cache.preprocess(unit, Collections.<String>emptyList()).toString());
+            assertEquals(0, cache.size());
+        } finally {
+            fileManager.close();
+        }
+    }
+
+    /**
+     * Returns the PCPP output without white space, which PCPP does not keep.
+     */
+    static String tokens(CharSequence code) {
+        return code.toString().replaceAll("\\s+", "");
+    }
+}
@@ -0,0 +1,38 @@
+package com.oneapm.compiler;
+
+import java.io.StringReader;
+import java.nio.CharBuffer;
+
+import static com.oneapm.compiler.TestSupport.*;
+
+public class SourceBufferTest {
+
+    public void testSpareCharAfterContent() {
+        SourceBuffer buffer = new SourceBuffer(0);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            String s = "line " + i + "\n";
+            buffer.append(s);
+            expected.append(s);
+            char[] chars = s.toCharArray();
+            buffer.append(chars, 0, chars.length);
+            expected.append(s);
+            CharBuffer cb = buffer.toCharBuffer();
+            assertTrue(cb.hasArray() && !cb.isReadOnly(), "not a writable array backed buffer");
+            assertTrue(cb.array().length > buffer.length(), "no spare char at length " + buffer.length());
+        }
+        assertEquals(expected.toString(), buffer.toString());
+    }
+
+    public void testRead() throws Exception {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 20000) {
+            text.append("int x").append(text.length()).append(";\n");
+        }
+        SourceBuffer buffer = SourceBuffer.read(new StringReader(text.toString()));
+        assertEquals(text.toString(), buffer.toString());
+        assertTrue(buffer.toCharBuffer().array().length > buffer.length(), "no spare char");
+        assertEquals(text.indexOf(";"), buffer.indexOf(';', 0));
+        assertEquals(text.substring(3, 9), buffer.subSequence(3, 9).toString());
+    }
+}
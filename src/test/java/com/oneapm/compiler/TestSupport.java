@@ -0,0 +1,60 @@
+package com.oneapm.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Helpers shared by the tests. Tests are plain classes whose public test*
+ * methods surefire runs; they fail by throwing.
+ */
+final class TestSupport {
+
+    private TestSupport() {
+    }
+
+    static void assertTrue(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    static void assertEquals(Object expected, Object actual) {
+        boolean equal = expected instanceof byte[] && actual instanceof byte[]
+                ? Arrays.equals((byte[]) expected, (byte[]) actual)
+                : expected == null ? actual == null : expected.equals(actual);
+        if (!equal) {
+            throw new AssertionError("expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    static File tempDir(String prefix) throws IOException {
+        File dir = Files.createTempDirectory(prefix).toFile();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    static File write(File dir, String name, String content) throws IOException {
+        File file = new File(dir, name);
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    /**
+     * Rewrites a file and moves its time stamp forward, so that the change
+     * shows even with coarse file system timestamps.
+     */
+    static File rewrite(File file, String content) throws IOException {
+        long before = file.lastModified();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        file.setLastModified(Math.max(file.lastModified(), before + 2000));
+        return file;
+    }
+
+    static byte[] read(File file) throws IOException {
+        return Files.readAllBytes(file.toPath());
+    }
+}